@@ -2,120 +2,401 @@ package top.zwx.eazyDB.backend.common;
 
 import top.zwx.eazyDB.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
 
 /**
  * AbstractCache实现了一个引用计数策略的缓存
+ * 有上限的缓存中，引用计数降为 0 的资源仍然留在缓存中，缓存满时再由驱逐策略挑选其中一个写回并移除
+ * 没有上限（maxResource <= 0）的缓存在引用计数降为 0 时直接释放资源
+ * 设置了内存预算的缓存按 sizeOf 统计占用的字节，引用计数降为 0 的资源保留在缓存中，超出预算时由预算裁剪
+ *
+ * 查找走 ConcurrentHashMap，不需要全局锁；引用计数是每个资源上的原子变量
+ * 同一个资源同时只会有一个线程去加载，其他线程阻塞在这个资源的 future 上等待加载完成
  * @param <T>
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                 //实际缓存的数据
-    private HashMap<Long, Integer> references;      //元素的引用个数
-    private HashMap<Long, Boolean> getting;         //正在获取某资源的线程
+    /**
+     * 缓存中的一个资源
+     * refs 为引用个数，-1 表示资源正在被移出缓存，不能再被引用
+     */
+    private static class Holder<T> {
+        final CompletableFuture<T> loaded = new CompletableFuture<>();      //资源加载完成
+        final CompletableFuture<Void> removed = new CompletableFuture<>();  //资源已移出缓存
+        final AtomicInteger refs;
+        long size;                                                          //计入内存预算的字节数
+
+        Holder(int refs) {
+            this.refs = new AtomicInteger(refs);
+        }
+    }
+
+    private ConcurrentHashMap<Long, Holder<T>> cache;   //实际缓存的数据，包括正在加载的资源
 
     private int maxResource;                        //缓存的最大缓存资源数
-    private int count = 0;                          //缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                    //缓存中元素的个数
+    private EvictPolicy policy;                     //缓存满时的驱逐策略
+    private Lock policyLock;                        //只保护驱逐策略内部的状态
+
+    private MemoryBudget budget;                    //内存预算，没有设置时为null
+    private boolean trimmable;                      //是否可以被预算裁剪
+    private AtomicLong bytes;                       //计入预算的字节数
+
+    private LongAdder hits;                         //命中次数，只统计资源已经加载完成的情况
+    private LongAdder waits;                        //资源正在被其他线程加载或预读，等待加载完成的次数
+    private LongAdder misses;                       //未命中次数
+    private LongAdder evictions;                    //驱逐次数
+
     public AbstractCache(int maxResource) {
+        this(maxResource, new ClockPolicy());
+    }
+
+    public AbstractCache(int maxResource, EvictPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        cache = new ConcurrentHashMap<>();
+        count = new AtomicInteger(0);
+        policyLock = new ReentrantLock();
+        hits = new LongAdder();
+        waits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+        bytes = new AtomicLong(0);
+    }
+
+    /**
+     * 把缓存加入内存预算，trimmable 为 true 时引用降为 0 的资源保留在缓存中，由预算裁剪
+     * 需要在缓存开始使用之前调用
+     */
+    protected void setBudget(MemoryBudget budget, String name, boolean trimmable) {
+        this.budget = budget;
+        this.trimmable = trimmable;
+        budget.register(name, this, trimmable);
+    }
+
+    //引用降为 0 的资源是否保留在缓存中
+    private boolean retains() {
+        return maxResource > 0 || trimmable;
     }
 
     protected T get(long key) throws Exception {
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
-                //请求的资源正在被其他线程处理
-                lock.unlock();
-                try{
-                    Thread.sleep(1);
-                }catch (InterruptedException e) {
-                    e.printStackTrace();
+            Holder<T> h = cache.get(key);
+            if(h != null) {
+                if(!pin(h)) {
+                    //资源正在被移出缓存，等它移出后重新加载
+                    h.removed.join();
                     continue;
                 }
+                //资源存在缓存中或正在被其他线程加载，等待加载完成后返回；只有不用等待时才算命中
+                if(h.loaded.isDone()) {
+                    hits.increment();
+                }else {
+                    waits.increment();
+                }
+                T obj = await(h);
+                if(retains() && policyLock.tryLock()) {
+                    //策略锁被占用时放弃这次命中记录，命中路径上不等待任何锁
+                    try{
+                        policy.onHit(key);
+                    }finally {
+                        policyLock.unlock();
+                    }
+                }
+                return obj;
+            }
+
+            //开始尝试获取资源，缓存满时先驱逐一个没有被引用的资源
+            reserve();
+            Holder<T> nh = new Holder<>(1);
+            if(cache.putIfAbsent(key, nh) != null) {
+                //其他线程抢先开始加载这个资源
+                count.decrementAndGet();
                 continue;
             }
-            if(cache.containsKey(key)) {
-                //资源存在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            misses.increment();
+
+            T obj = null;
+            try{
+                obj = getForCache(key);
+            }catch (Exception e) {
+                cache.remove(key, nh);
+                count.decrementAndGet();
+                nh.loaded.completeExceptionally(e);
+                nh.removed.complete(null);
+                throw e;
             }
+            loaded(key, nh, obj);
+            return obj;
+        }
+    }
 
-            //开始尝试获取资源
-            if(maxResource > 0 && count == maxResource){
-                lock.unlock();
-                throw Error.CacheFullException;
+    private void loaded(long key, Holder<T> h, T obj) {
+        if(retains()) {
+            policyLock.lock();
+            try{
+                policy.onLoad(key);
+            }finally {
+                policyLock.unlock();
             }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
         }
-        T obj = null;
+        if(budget != null) {
+            h.size = sizeOf(obj);
+            bytes.addAndGet(h.size);
+        }
+        h.loaded.complete(obj);
+        if(trimmable) {
+            budget.trim();
+        }
+    }
+
+    /**
+     * 为预读占住一个资源的位置，资源已经在缓存中（或正在加载、移出）或者缓存已满无法驱逐时返回false
+     * 占位成功后必须调用 fill 或 abandon；期间 get 这个资源的线程会等待预读完成
+     * 资源不在缓存中说明它之前的写回已经完成，此时从磁盘读到的就是最新的数据
+     */
+    protected boolean claim(long key) {
+        if(cache.containsKey(key)) {
+            return false;
+        }
         try{
-            obj = getForCache(key);
+            reserve();
         }catch (Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            return false;
+        }
+        if(cache.putIfAbsent(key, new Holder<>(0)) != null) {
+            count.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    //完成占位资源的加载，资源以引用为0留在缓存中
+    protected void fill(long key, T obj) {
+        Holder<T> h = cache.get(key);
+        if(h != null) {
+            loaded(key, h, obj);
+        }
+    }
+
+    //放弃占位，等待这个资源的线程会收到异常 e
+    protected void abandon(long key, Exception e) {
+        Holder<T> h = cache.remove(key);
+        count.decrementAndGet();
+        h.loaded.completeExceptionally(e);
+        h.removed.complete(null);
+    }
+
+    /**
+     * 资源已经在缓存中时增加一个引用并返回，否则（不在缓存、正在加载或正在移出）返回null，不会触发加载
+     */
+    protected T getIfPresent(long key) {
+        Holder<T> h = cache.get(key);
+        if(h == null || !h.loaded.isDone() || h.loaded.isCompletedExceptionally() || !pin(h)) {
+            return null;
+        }
+        return h.loaded.join();
+    }
+
+    //增加一个引用，资源正在被移出时失败
+    private static boolean pin(Holder<?> h) {
+        while(true) {
+            int ref = h.refs.get();
+            if(ref < 0) {
+                return false;
+            }
+            if(h.refs.compareAndSet(ref, ref + 1)) {
+                return true;
+            }
+        }
+    }
+
+    //等待资源加载完成，加载失败时抛出加载线程遇到的异常
+    private static <T> T await(Holder<T> h) throws Exception {
+        try{
+            return h.loaded.join();
+        }catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            }
             throw e;
         }
+    }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-        return obj;
+    //为即将加载的资源占用一个位置
+    private void reserve() throws Exception {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return;
+        }
+        while(true) {
+            int c = count.get();
+            if(c < maxResource) {
+                if(count.compareAndSet(c, c + 1)) {
+                    return;
+                }
+                continue;
+            }
+            if(!evictOne()) {
+                //被保留的对象可能引用着所有的资源，先让预算清理对象缓存再重试
+                if(budget != null && !trimmable && budget.relieve()) {
+                    continue;
+                }
+                throw Error.CacheFullException;
+            }
+        }
     }
 
     /**
-     * 强行释放一个缓存
+     * 驱逐一个引用计数为 0 的资源
+     * 只在挑选牺牲者时持有策略锁，写回在锁外进行，不同资源的写回可以并行
+     * @return 是否成功驱逐
      */
-    protected void release(long key) {
-        lock.lock();
+    private boolean evictOne() {
+        long victim;
+        Holder<T> h;
+        policyLock.lock();
         try{
-            int ref = references.get(key) - 1;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            }else {
-                references.put(key, ref);
+            while(true) {
+                Long key = policy.victim(k -> {
+                    Holder<T> x = cache.get(k);
+                    return x != null && x.refs.get() == 0;
+                });
+                if(key == null) {
+                    return false;
+                }
+                h = cache.get(key);
+                if(h != null && h.refs.compareAndSet(0, -1)) {
+                    victim = key;
+                    policy.onRemove(victim);
+                    break;
+                }
+                //挑选之后资源又被引用了，重新挑选
             }
         }finally {
-            lock.unlock();
+            policyLock.unlock();
+        }
+        remove(victim, h);
+        evictions.increment();
+        return true;
+    }
+
+    //写回并移出一个已经标记为 -1 的资源，写回完成之前其他线程不会重新加载它
+    private void remove(long key, Holder<T> h) {
+        try{
+            releaseForCache(h.loaded.join());
+        }finally {
+            cache.remove(key, h);
+            count.decrementAndGet();
+            bytes.addAndGet(-h.size);
+            h.removed.complete(null);
+        }
+    }
+
+    /**
+     * 移出没有被引用的资源，直到移出的字节数达到 target 或者没有可以移出的资源，返回移出的字节数
+     */
+    long trim(long target) {
+        long before = bytes.get();
+        while(before - bytes.get() < target) {
+            if(!evictOne()) {
+                break;
+            }
+        }
+        return before - bytes.get();
+    }
+
+    /**
+     * 强行释放一个缓存
+     */
+    protected void release(long key) {
+        Holder<T> h = cache.get(key);
+        int ref = h.refs.decrementAndGet();
+        //有上限的缓存保留引用为 0 的资源，等待驱逐
+        if(ref == 0 && !retains() && h.refs.compareAndSet(0, -1)) {
+            remove(key, h);
         }
     }
+    /**
+     * 丢弃满足条件且没有被引用的资源，不写回，用于文件被截断后清理超出部分的缓存
+     */
+    protected void discard(LongPredicate filter) {
+        for(Map.Entry<Long, Holder<T>> entry : cache.entrySet()) {
+            long key = entry.getKey();
+            Holder<T> h = entry.getValue();
+            if(!filter.test(key) || !h.loaded.isDone() || !h.refs.compareAndSet(0, -1)) {
+                continue;
+            }
+            if(retains()) {
+                policyLock.lock();
+                try{
+                    policy.onRemove(key);
+                }finally {
+                    policyLock.unlock();
+                }
+            }
+            discardForCache(h.loaded.join());
+            cache.remove(key, h);
+            count.decrementAndGet();
+            bytes.addAndGet(-h.size);
+            h.removed.complete(null);
+        }
+    }
+
     /**
      * 关闭缓存，写回所有的资源
      */
     protected void close(){
-        lock.lock();
+        policyLock.lock();
         try{
-            Set<Long> keys = references.keySet();
-            for(Long key : keys){
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+            for(Map.Entry<Long, Holder<T>> entry : cache.entrySet()) {
+                Holder<T> h = entry.getValue();
+                h.refs.set(-1);
+                if(retains()) {
+                    policy.onRemove(entry.getKey());
+                }
+                remove(entry.getKey(), h);
             }
         }finally {
-            lock.unlock();
+            policyLock.unlock();
         }
     }
 
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    //计入内存预算的字节数，没有设置预算时为0
+    public long getMemoryUsage() {
+        return bytes.get();
+    }
+
+    //资源占用的内存的估算值，设置了内存预算时在加载后调用一次
+    protected long sizeOf(T obj) {
+        return 0;
+    }
+
     /**
      * 当资源不在缓存时的获取行为
      */
@@ -125,4 +406,10 @@ public abstract class AbstractCache<T> {
      * 当资源被驱逐时的写回行为
      */
     protected abstract void releaseForCache(T obj);
+
+    /**
+     * 资源被 discard 丢弃时的行为，不写回，默认什么都不做
+     */
+    protected void discardForCache(T obj) {
+    }
 }
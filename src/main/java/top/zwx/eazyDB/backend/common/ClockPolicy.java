@@ -0,0 +1,86 @@
+package top.zwx.eazyDB.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK 驱逐策略
+ * 所有资源围成一个环，每个资源有一个访问位，命中时置位
+ * 指针转动时遇到访问位为 1 的资源将其清零跳过，遇到访问位为 0 且可驱逐的资源则选为牺牲者
+ */
+public class ClockPolicy implements EvictPolicy {
+    private List<Long> keys;                //环上每个槽位对应的 key，null 表示空槽
+    private List<Boolean> refBits;          //每个槽位的访问位
+    private Map<Long, Integer> slots;       //key 到槽位的映射
+    private Deque<Integer> freeSlots;       //被释放的空槽
+    private int hand;                       //时钟指针
+
+    public ClockPolicy() {
+        keys = new ArrayList<>();
+        refBits = new ArrayList<>();
+        slots = new HashMap<>();
+        freeSlots = new ArrayDeque<>();
+        hand = 0;
+    }
+
+    @Override
+    public void onLoad(long key) {
+        Integer slot = freeSlots.poll();
+        if(slot == null) {
+            slot = keys.size();
+            keys.add(key);
+            refBits.add(true);
+        } else {
+            keys.set(slot, key);
+            refBits.set(slot, true);
+        }
+        slots.put(key, slot);
+    }
+
+    @Override
+    public void onHit(long key) {
+        Integer slot = slots.get(key);
+        if(slot != null) {
+            refBits.set(slot, true);
+        }
+    }
+
+    @Override
+    public void onRemove(long key) {
+        Integer slot = slots.remove(key);
+        if(slot != null) {
+            keys.set(slot, null);
+            refBits.set(slot, false);
+            freeSlots.push(slot);
+        }
+    }
+
+    @Override
+    public Long victim(LongPredicate evictable) {
+        int size = keys.size();
+        //最多转两圈：第一圈清零访问位，第二圈一定能找到访问位为 0 的资源
+        for(int i = 0; i < size * 2; i++) {
+            if(hand >= size) {
+                hand = 0;
+            }
+            int slot = hand++;
+            Long key = keys.get(slot);
+            if(key == null) {
+                continue;
+            }
+            if(refBits.get(slot)) {
+                refBits.set(slot, false);
+                continue;
+            }
+            if(evictable.test(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+}
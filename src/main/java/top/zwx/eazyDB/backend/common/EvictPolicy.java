@@ -0,0 +1,21 @@
+package top.zwx.eazyDB.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存的驱逐策略
+ * AbstractCache 在缓存满时通过它挑选一个引用计数为 0 的资源驱逐
+ * 实现不需要考虑并发，所有方法都在缓存持有策略锁时调用
+ */
+public interface EvictPolicy {
+    void onLoad(long key);      //资源被载入缓存
+    void onHit(long key);       //资源在缓存中被命中
+    void onRemove(long key);    //资源被移出缓存
+
+    /**
+     * 选出一个可以驱逐的资源
+     * @param evictable 判断某个资源当前是否可以被驱逐（没有被引用）
+     * @return 被选中资源的 key，没有可驱逐的资源时返回 null
+     */
+    Long victim(LongPredicate evictable);
+}
@@ -0,0 +1,41 @@
+package top.zwx.eazyDB.backend.common;
+
+import java.util.LinkedHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU 驱逐策略
+ * 驱逐最久没有被访问过的可驱逐资源
+ */
+public class LRUPolicy implements EvictPolicy {
+    private LinkedHashMap<Long, Boolean> order;     //按访问顺序排列，表头是最久未访问的资源
+
+    public LRUPolicy() {
+        order = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public void onLoad(long key) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void onHit(long key) {
+        order.get(key);
+    }
+
+    @Override
+    public void onRemove(long key) {
+        order.remove(key);
+    }
+
+    @Override
+    public Long victim(LongPredicate evictable) {
+        for(Long key : order.keySet()) {
+            if(evictable.test(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+}
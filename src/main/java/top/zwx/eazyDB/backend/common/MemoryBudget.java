@@ -0,0 +1,110 @@
+package top.zwx.eazyDB.backend.common;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 统一的内存预算，按字节统计页面缓存和数据项、Entry 这些对象缓存占用的内存
+ *
+ * 页面缓存的页帧在创建时一次性分配，分到预算中固定的一份（PAGE_CACHE_RATIO）
+ * 剩下的预算由对象缓存共享：设置了预算的对象缓存保留引用降为 0 的对象，供之后的读取命中，
+ * 总量超出时从后注册的缓存开始移出没有被引用的对象（Entry 引用着数据项，先移出 Entry 才能移出数据项）
+ *
+ * 被保留的数据项引用着它所在的页面，页面缓存中的页都被引用、无法驱逐时，也先逐步移出对象缓存中的对象再重试
+ */
+public class MemoryBudget {
+    public static final double PAGE_CACHE_RATIO = 0.75;     //预算中分给页面缓存的比例
+
+    private static class Account {
+        String name;
+        AbstractCache<?> cache;
+        boolean trimmable;
+    }
+
+    private long limit;
+    private List<Account> accounts;
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+        this.accounts = new CopyOnWriteArrayList<>();
+    }
+
+    //页面缓存可以使用的内存
+    public long pageCacheMemory() {
+        return (long) (limit * PAGE_CACHE_RATIO);
+    }
+
+    //对象缓存共享的内存
+    public long objectMemory() {
+        return limit - pageCacheMemory();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    //当前所有缓存占用的内存
+    public long getUsed() {
+        long used = 0;
+        for(Account a : accounts) {
+            used += a.cache.getMemoryUsage();
+        }
+        return used;
+    }
+
+    //每个缓存占用的内存，按注册顺序
+    public Map<String, Long> getUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        for(Account a : accounts) {
+            usage.put(a.name, a.cache.getMemoryUsage());
+        }
+        return usage;
+    }
+
+    //trimmable 为 false 的缓存（页面缓存）只统计，不会被裁剪
+    void register(String name, AbstractCache<?> cache, boolean trimmable) {
+        Account a = new Account();
+        a.name = name;
+        a.cache = cache;
+        a.trimmable = trimmable;
+        accounts.add(a);
+    }
+
+    private long objectUsage() {
+        long used = 0;
+        for(Account a : accounts) {
+            if(a.trimmable) {
+                used += a.cache.getMemoryUsage();
+            }
+        }
+        return used;
+    }
+
+    //对象缓存超出预算时，从后注册的缓存开始移出没有被引用的对象
+    void trim() {
+        long excess = objectUsage() - objectMemory();
+        for(int i = accounts.size() - 1; i >= 0 && excess > 0; i--) {
+            Account a = accounts.get(i);
+            if(a.trimmable) {
+                excess -= a.cache.trim(excess);
+            }
+        }
+    }
+
+    /**
+     * 页面缓存无法驱逐时调用，每次移出对象缓存中四分之一没有被引用的对象，释放它们引用的页面
+     * 返回是否移出了对象，调用方驱逐仍然失败时会再次调用，直到对象缓存被清空
+     */
+    boolean relieve() {
+        boolean freed = false;
+        for(int i = accounts.size() - 1; i >= 0; i--) {
+            Account a = accounts.get(i);
+            if(a.trimmable && a.cache.trim(a.cache.getMemoryUsage() / 4 + 1) > 0) {
+                freed = true;
+            }
+        }
+        return freed;
+    }
+}
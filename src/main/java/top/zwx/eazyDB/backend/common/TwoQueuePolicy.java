@@ -0,0 +1,85 @@
+package top.zwx.eazyDB.backend.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.function.LongPredicate;
+
+/**
+ * 2Q 驱逐策略，可以抵抗顺序扫描对缓存的污染
+ * A1in：第一次被载入的资源，先进先出
+ * A1out：从 A1in 中被驱逐的资源的 key（只记录 key，不占用缓存）
+ * Am：被驱逐后又被再次载入的资源，说明它是热点，按 LRU 管理
+ * 一次性扫描的页面只会在 A1in 中流过，不会把 Am 中的热点页面挤出去
+ */
+public class TwoQueuePolicy implements EvictPolicy {
+    private LinkedHashSet<Long> a1in;
+    private LinkedHashSet<Long> a1out;
+    private LinkedHashMap<Long, Boolean> am;
+
+    private int kin;        //A1in 的目标大小
+    private int kout;       //A1out 最多记录的 key 个数
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public void onLoad(long key) {
+        if(a1out.remove(key)) {
+            am.put(key, Boolean.TRUE);
+        } else {
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    public void onHit(long key) {
+        //A1in 中的资源被命中不改变位置，避免短时间内的重复访问把它误判为热点
+        am.get(key);
+    }
+
+    @Override
+    public void onRemove(long key) {
+        if(a1in.remove(key)) {
+            a1out.add(key);
+            if(a1out.size() > kout) {
+                Iterator<Long> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(key);
+        }
+    }
+
+    @Override
+    public Long victim(LongPredicate evictable) {
+        Long key;
+        if(a1in.size() > kin) {
+            key = first(a1in, evictable);
+            if(key == null) {
+                key = first(am.keySet(), evictable);
+            }
+        } else {
+            key = first(am.keySet(), evictable);
+            if(key == null) {
+                key = first(a1in, evictable);
+            }
+        }
+        return key;
+    }
+
+    private static Long first(Iterable<Long> keys, LongPredicate evictable) {
+        for(Long key : keys) {
+            if(evictable.test(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+package top.zwx.eazyDB.backend.dm;
+
+import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
+import top.zwx.eazyDB.backend.dm.page.PageX;
+import top.zwx.eazyDB.backend.utils.Types;
+import top.zwx.eazyDB.common.Error;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * 批量装载，用于初次导入和重建索引
+ * 数据按顺序直接放进内存中的页面，不经过 pageIndex、页面缓存，也不逐条写插入日志
+ * 攒满 BATCH_PAGES 页后作为新页面直接写入文件并落盘，每批只写一条只记录页号的日志
+ * 最多在内存中保留一批页面，输入可以是任意长的流
+ *
+ * 页号在写入时才确定，所以 add() 不返回 uid，每批写入后按输入顺序把 uid 交给 uidSink
+ * 每批写入后，页面按实际的空闲空间放进 pageIndex 和空闲空间表，页尾剩下的空间给普通插入使用
+ */
+public class BulkLoader implements AutoCloseable {
+    public static final int BATCH_PAGES = 256;
+
+    private DataManagerImpl dm;
+    private long xid;
+    private LongConsumer uidSink;
+    private int pageSize;
+    private int maxFreeSpace;
+
+    private List<byte[]> pages;             //已经装满、等待写入的页面
+    private List<Integer> counts;           //每个页面中的数据条数
+    private byte[] current;                 //正在装的页面
+    private int currentCount;
+    private boolean closed;
+
+    BulkLoader(DataManagerImpl dm, long xid, LongConsumer uidSink) {
+        this.dm = dm;
+        this.xid = xid;
+        this.uidSink = uidSink;
+        this.pageSize = dm.getPageSize();
+        this.maxFreeSpace = PageX.maxFreeSpace(pageSize);
+        this.pages = new ArrayList<>(BATCH_PAGES);
+        this.counts = new ArrayList<>(BATCH_PAGES);
+    }
+
+    public void add(byte[] data) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        if(raw.length > maxFreeSpace) {
+            throw Error.DataTooLargeException;
+        }
+        if(current == null || PageX.appendRaw(current, raw) < 0) {
+            seal();
+            current = PageX.initRaw(pageSize);
+            PageX.appendRaw(current, raw);
+        }
+        currentCount++;
+    }
+
+    //当前页面装满，攒够一批时写入文件
+    private void seal() {
+        if(current == null) {
+            return;
+        }
+        pages.add(current);
+        counts.add(currentCount);
+        current = null;
+        currentCount = 0;
+        if(pages.size() >= BATCH_PAGES) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if(pages.isEmpty()) {
+            return;
+        }
+        List<int[]> runs = dm.writePagesDirect(xid, pages.size(), (idx, next) -> pages.get(idx));
+        int idx = 0;
+        for(int[] run : runs) {
+            for(int pgno = run[0]; pgno < run[0] + run[1]; pgno++) {
+                int count = counts.get(idx++);
+                for(int slot = 0; slot < count; slot++) {
+                    uidSink.accept(Types.addressToUid(pgno, (short) slot));
+                }
+            }
+        }
+        pages.clear();
+        counts.clear();
+    }
+
+    //写入剩下的页面，返回后所有数据都已落盘，uid 都已交出
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        seal();
+        flush();
+    }
+}
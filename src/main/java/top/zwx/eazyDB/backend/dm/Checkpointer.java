@@ -0,0 +1,51 @@
+package top.zwx.eazyDB.backend.dm;
+
+/**
+ * 后台检查点线程
+ * 上次检查点之后写入的日志超过 interval 字节时做一次检查点，删除恢复不再需要的日志段，
+ * 日志占用的磁盘空间因此大致不超过 interval 加上最老的活跃事务之后的日志
+ */
+class Checkpointer extends Thread {
+    public static final long DEFAULT_INTERVAL = 64L << 20;
+    private static final long POLL = 100;               //两次检查之间的间隔，毫秒
+
+    private DataManagerImpl dm;
+    private volatile long interval;
+    private volatile boolean stopped;
+
+    Checkpointer(DataManagerImpl dm, long interval) {
+        this.dm = dm;
+        this.interval = interval;
+        setName("checkpointer");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            try{
+                Thread.sleep(POLL);
+            }catch (InterruptedException e) {
+                return;
+            }
+            if(interval > 0 && dm.logger.getEndLsn() - dm.lastCheckpoint >= interval) {
+                dm.checkpoint();
+            }
+        }
+    }
+
+    //interval 为0时不再自动做检查点
+    void setInterval(long interval) {
+        this.interval = Math.max(0, interval);
+    }
+
+    //和写页线程一样不中断，等它睡醒自己退出
+    void shutdown() {
+        stopped = true;
+        try{
+            join();
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,21 +1,117 @@
 package top.zwx.eazyDB.backend.dm;
 
+import top.zwx.eazyDB.backend.common.ClockPolicy;
+import top.zwx.eazyDB.backend.common.MemoryBudget;
 import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
 import top.zwx.eazyDB.backend.dm.logger.Logger;
+import top.zwx.eazyDB.backend.dm.page.PageOne;
 import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCacheImpl;
+import top.zwx.eazyDB.backend.dm.pageCache.PageWriter;
 import top.zwx.eazyDB.backend.tm.TransactionManager;
 
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.function.LongConsumer;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    //批量插入，每个页面尽量放满，同一页面上的数据只写一条日志，按输入顺序返回uid
+    List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception;
+    //存放超过一页的大数据，数据放在溢出页链中，返回的uid用openLarge读取
+    long insertLarge(long xid, byte[] data) throws Exception;
+    //以流的方式读取insertLarge写入的数据，uid对应的数据项无效时返回null
+    ReadableByteChannel openLarge(long uid) throws Exception;
+    //批量装载，直接在内存中构造整页写入文件，uid按输入顺序交给uidSink
+    BulkLoader bulkLoader(long xid, LongConsumer uidSink);
+    int getPageSize();
+    //创建或打开时使用的内存预算，没有使用预算时为null
+    MemoryBudget getMemoryBudget();
+    //日志，可以调整组提交参数、查看刷盘次数
+    Logger getLogger();
+    //开启后每个插入线程独占一个填充页，并发插入不再争用同一批页面
+    void setFillPagePerThread(boolean enabled);
+    //记下脏页表和活跃事务表作为恢复的起点，删除之前的日志段，不等待写回全部脏页
+    void checkpoint();
+    //上次检查点之后写入的日志超过bytes字节时由后台线程做检查点，为0时只在关闭时做
+    void setCheckpointInterval(long bytes);
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
-        Logger lg = Logger.create(path);
+        return create(path, mem, PageCache.PAGE_SIZE, tm);
+    }
+
+    //pageSize 为数据库的页面大小，创建后不能修改
+    public static DataManager create(String path, long mem, int pageSize, TransactionManager tm) {
+        return create(path, mem, pageSize, PageCache.MODE_FILE, tm);
+    }
+
+    //mode 为数据库文件的读写方式，PageCache.MODE_FILE、MODE_MMAP 或 MODE_SEGMENTED，创建后不能修改
+    public static DataManager create(String path, long mem, int pageSize, int mode, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.create(path, mem, pageSize, mode, new ClockPolicy());
+        return create(pc, Logger.create(path), tm, null);
+    }
 
+    //budget 为统一的内存预算，页面缓存使用其中固定的一份，数据项缓存和Entry缓存共享剩下的部分
+    public static DataManager create(String path, MemoryBudget budget, int pageSize, TransactionManager tm) {
+        return create(path, budget, pageSize, PageCache.MODE_FILE, tm);
+    }
+
+    public static DataManager create(String path, MemoryBudget budget, int pageSize, int mode, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.create(path, budget.pageCacheMemory(), pageSize, mode, new ClockPolicy());
+        pc.setMemoryBudget(budget);
+        return create(pc, Logger.create(path), tm, budget);
+    }
+
+    private static DataManager create(PageCache pc, Logger lg, TransactionManager tm, MemoryBudget budget) {
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        if(budget != null) {
+            dm.setMemoryBudget(budget);
+        }
         dm.initPageOne();
+        dm.initPageIndex();
+        pc.startWriter(lg, PageWriter.DEFAULT_DIRTY_RATIO);
+        dm.startCheckpointer();
+        return dm;
+    }
+
+    //按创建时的读写方式打开
+    public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, mem, PageCache.MODE_STORED, tm);
+    }
+
+    //mode 与创建时的读写方式不一致时报错
+    public static DataManager open(String path, long mem, int mode, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.open(path, mem, mode, new ClockPolicy());
+        return open(pc, Logger.open(path), tm, null);
+    }
+
+    public static DataManager open(String path, MemoryBudget budget, TransactionManager tm) {
+        return open(path, budget, PageCache.MODE_STORED, tm);
+    }
+
+    public static DataManager open(String path, MemoryBudget budget, int mode, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.open(path, budget.pageCacheMemory(), mode, new ClockPolicy());
+        pc.setMemoryBudget(budget);
+        return open(pc, Logger.open(path), tm, budget);
+    }
+
+    private static DataManager open(PageCache pc, Logger lg, TransactionManager tm, MemoryBudget budget) {
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        if(budget != null) {
+            dm.setMemoryBudget(budget);
+        }
+        if(!dm.loadCheckPageOne()) {
+            Recover.recover(tm, lg, pc);
+            //恢复修改的页面的 recLSN 晚于它们重做的日志，检查点之前先全部写回
+            pc.flushDirtyPages(Long.MAX_VALUE);
+        }
+        dm.initPageIndex();
+        PageOne.setVcOpen(dm.pageOne);
+        dm.pc.flushPage(dm.pageOne);
+        pc.startWriter(lg, PageWriter.DEFAULT_DIRTY_RATIO);
+        dm.startCheckpointer();
         return dm;
     }
 }
@@ -1,46 +1,135 @@
 package top.zwx.eazyDB.backend.dm;
 
+import com.google.common.primitives.Bytes;
 import top.zwx.eazyDB.backend.common.AbstractCache;
+import top.zwx.eazyDB.backend.common.MemoryBudget;
+import top.zwx.eazyDB.backend.common.SubArray;
 import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
 import top.zwx.eazyDB.backend.dm.dataItem.DataItemImpl;
 import top.zwx.eazyDB.backend.dm.logger.Logger;
 import top.zwx.eazyDB.backend.dm.page.Page;
 import top.zwx.eazyDB.backend.dm.page.PageOne;
+import top.zwx.eazyDB.backend.dm.page.PageOverflow;
 import top.zwx.eazyDB.backend.dm.page.PageX;
 import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+import top.zwx.eazyDB.backend.dm.pageIndex.FreeSpaceMap;
 import top.zwx.eazyDB.backend.dm.pageIndex.PageIndex;
 import top.zwx.eazyDB.backend.dm.pageIndex.PageInfo;
 import top.zwx.eazyDB.backend.tm.TransactionManager;
 import top.zwx.eazyDB.backend.utils.Panic;
+import top.zwx.eazyDB.backend.utils.Parser;
 import top.zwx.eazyDB.backend.utils.Types;
 import top.zwx.eazyDB.common.Error;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+    private static final int PREFETCH_PAGES = 64;       //启动扫描时每次预读的页数
+    private static final long ITEM_OVERHEAD = 128;      //一个数据项对象占用内存的估算值，不含数据的副本
 
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    FreeSpaceMap fsm;                                   //空闲空间表，旧格式的文件没有，为null
+    Lock allocLock;                                     //保证空闲空间表页分配在固定的位置上
     Page pageOne;
+    int maxFreeSpace;                                   //一页最多能存放的数据，由页面大小决定
+    ConcurrentHashMap<Integer, Integer> liveItems;      //每页在缓存中的数据项个数，有数据项的页面不能整理
+    volatile boolean fillPagePerThread;                 //每个插入线程独占一个当前填充页
+    ConcurrentHashMap<Thread, Integer> fillPages;       //线程正在填充的页面，这些页面不在pageIndex中
+    MemoryBudget budget;                                //内存预算，没有设置时为null
+    ReentrantReadWriteLock checkpointLock;              //写日志到修改完页面之间持有读锁，检查点取 BeginLsn 时持有写锁
+    Lock checkpointMutex;                               //同一时间只做一个检查点
+    ConcurrentHashMap<Long, Long> firstLsn;             //事务的第一条日志的LSN，检查点时清掉已经结束的事务
+    ConcurrentHashMap<Object, Long> applying;           //进行中的先写日志后改页面的操作，值为开始时的日志末尾
+    volatile long lastCheckpoint;                       //上一次检查点的 BeginLsn
+    Checkpointer checkpointer;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        this.liveItems = new ConcurrentHashMap<>();
+        this.allocLock = new ReentrantLock();
+        this.fillPages = new ConcurrentHashMap<>();
+        this.checkpointLock = new ReentrantReadWriteLock();
+        this.checkpointMutex = new ReentrantLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.applying = new ConcurrentHashMap<>();
+        pc.setRecLsnSource(this::recLsn);
+        this.lastCheckpoint = logger.getStartLsn();
+    }
+
+
+    /**
+     * 加入内存预算，之后引用降为 0 的数据项留在缓存中，直到预算不够时被移出
+     * 被保留的数据项引用着所在的页面，页面中有被保留的数据项时不能整理
+     */
+    void setMemoryBudget(MemoryBudget budget){
+        this.budget = budget;
+        setBudget(budget, "dataItem", true);
+    }
+
+    @Override
+    public MemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
     }
 
+    //数据项持有数据的副本；before() 之后分配的旧数据不计入，移出时按加载时的估算值扣除
+    @Override
+    protected long sizeOf(DataItem di) {
+        byte[] oldRaw = di.getOldRaw();
+        SubArray raw = di.getRaw();
+        return ITEM_OVERHEAD + (raw.end - raw.start) + (oldRaw == null ? 0 : oldRaw.length);
+    }
 
     @Override
     protected void releaseForCache(DataItem di) {
+        liveItems.computeIfPresent(di.page().getPageNumber(), (k, v) -> v == 1 ? null : v - 1);
         di.page().release();
     }
 
-    //初始化pageIndex
+    /**
+     * 初始化pageIndex
+     * 有空闲空间表时不读任何页面，PageIndex在需要时从表中逐页加载；旧格式的文件扫描所有数据页
+     */
+    void initPageIndex(){
+        if(PageOne.hasFreeSpaceMap(pageOne)){
+            fsm = new FreeSpaceMap(pc);
+            pIndex.setLoader(fsm);
+        }else{
+            fillPageIndex();
+        }
+    }
+
+    //顺序扫描所有数据页，提前一个窗口预读后面的页面
     void fillPageIndex(){
         int pageNumber = pc.getPageNumber();
         for(int i = 2; i <= pageNumber; i++){
+            if((i - 2) % PREFETCH_PAGES == 0){
+                pc.prefetch(i, i + 2 * PREFETCH_PAGES - 1);
+            }
             Page pg = null;
             try{
                 pg = pc.getPage(i);
@@ -52,10 +141,131 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
-    //为xid生成update日志
-    public void logDataItem(long xid, DataItem di){
+    /**
+     * 为xid生成update日志，页面在此之前已经修改，调用方持有页面锁
+     * 只放进日志队列，返回的LSN记到页面上之后就可以释放页面锁，再用 flushLog 等待落盘
+     */
+    public long logDataItem(long xid, DataItem di){
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        return append(xid, log);
+    }
+
+    //为xid生成数据项中一段字节的修改日志，和 logDataItem 一样不等待落盘
+    public long logDataItemDelta(long xid, DataItem di, int offset, byte[] oldRaw, byte[] newRaw){
+        byte[] log = Recover.deltaLog(xid, di.getUid(), offset, oldRaw, newRaw);
+        return append(xid, log);
+    }
+
+    //等待lsn处的日志落盘
+    public void flushLog(long lsn){
+        logger.flush(lsn);
+    }
+
+    //写日志并记下事务的第一条日志；先写日志后改页面的调用方在 beginApply 和 endApply 之间调用
+    private long log(long xid, byte[] log){
+        checkpointLock.readLock().lock();
+        try{
+            long lsn = logger.log(log);
+            firstLsn.putIfAbsent(xid, lsn);
+            return lsn;
+        }finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    //和 log 一样，但不等待落盘，先改页面后写日志的调用方在页面锁内调用
+    private long append(long xid, byte[] log){
+        checkpointLock.readLock().lock();
+        try{
+            long lsn = logger.append(log);
+            firstLsn.putIfAbsent(xid, lsn);
+            return lsn;
+        }finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 先写日志后改页面的操作开始，持有检查点读锁直到 endApply，检查点取 BeginLsn 时没有写了日志还没改页面的操作
+     * 同时记下此时的日志末尾，操作期间变脏的页面的 recLSN 不晚于它写的日志
+     */
+    private Object beginApply(){
+        checkpointLock.readLock().lock();
+        Object op = new Object();
+        applying.put(op, logger.getEndLsn());
+        return op;
+    }
+
+    private void endApply(Object op){
+        applying.remove(op);
+        checkpointLock.readLock().unlock();
+    }
+
+    //页面变脏时的 recLSN：日志末尾和进行中的先写日志后改页面的操作开始时的日志末尾中最早的一个
+    long recLsn(){
+        long lsn = logger.getEndLsn();
+        for(long begin : applying.values()){
+            lsn = Math.min(lsn, begin);
+        }
+        return lsn;
+    }
+
+    /**
+     * 模糊检查点，只在取 BeginLsn 时短暂阻塞写日志：
+     * 1. 持有写锁取日志末尾作为 BeginLsn，此前写日志的修改都已经改到页面上，同时取活跃事务表
+     * 2. 写回上一次检查点之前就已经变脏的页面，重做的范围因此不超过两个检查点间隔
+     * 3. 取脏页表之后 force 一次，不在表中的页面在 BeginLsn 之前的修改就都已经落盘了
+     * 4. 写检查点日志并记进控制文件，删除重做和撤销都不再需要的日志段
+     */
+    @Override
+    public void checkpoint() {
+        checkpointMutex.lock();
+        try{
+            long beginLsn;
+            Map<Long, Long> activeXids = new HashMap<>();
+            checkpointLock.writeLock().lock();
+            try{
+                beginLsn = logger.getEndLsn();
+                for(Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator(); it.hasNext(); ){
+                    Map.Entry<Long, Long> e = it.next();
+                    if(!tm.isActive(e.getKey())){
+                        it.remove();
+                    }else{
+                        activeXids.put(e.getKey(), e.getValue());
+                    }
+                }
+            }finally {
+                checkpointLock.writeLock().unlock();
+            }
+            pc.flushDirtyPages(lastCheckpoint);
+            int pageCount = pc.getPageNumber();
+            Map<Integer, Long> dirtyPages = pc.getDirtyPageTable();
+            pc.force();
+
+            long keep = beginLsn;
+            for(long recLsn : dirtyPages.values()){
+                keep = Math.min(keep, recLsn);
+            }
+            for(long lsn : activeXids.values()){
+                keep = Math.min(keep, lsn);
+            }
+            long lsn = logger.log(Recover.fuzzyCheckpointLog(beginLsn, pageCount, dirtyPages, activeXids));
+            logger.setCheckpoint(lsn);
+            logger.removeBefore(keep);
+            lastCheckpoint = beginLsn;
+        }finally {
+            checkpointMutex.unlock();
+        }
+    }
+
+    @Override
+    public void setCheckpointInterval(long bytes) {
+        checkpointer.setInterval(bytes);
+    }
+
+    void startCheckpointer() {
+        checkpointer = new Checkpointer(this, Checkpointer.DEFAULT_INTERVAL);
+        checkpointer.start();
     }
 
     public void releaseDataItem(DataItem di){
@@ -64,16 +274,23 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     protected DataItem getForCache(long uid) throws Exception{
-        short offset = (short) (uid & ((1L << 16) - 1));
+        short slot = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        //在页面锁内登记并解析，和页面整理互斥
+        pg.lock();
+        try{
+            liveItems.merge(pgno, 1, Integer::sum);
+            return DataItem.parseDataItem(pg, slot, this);
+        }finally {
+            pg.unlock();
+        }
     }
 
     //在创建文件的时候初始化PageOne
     void initPageOne(){
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -106,7 +323,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * 在 pageIndex 中获取一个足以存储插入内容的页面的页号，获取页面后，首先需要写入插入日志，
-     * 接着才可以通过 pageX 插入数据，并返回插入位置的偏移。最后需要将页面信息重新插入 pageIndex
+     * 接着才可以通过 pageX 插入数据，并返回插入数据所在的槽。最后需要将页面信息重新插入 pageIndex
+     * 页面中有数据项正在被引用时不能整理，只有连续空间不够时换一个页面重试
+     * 一页放不下的数据用 insertLarge 存放
      * @param xid
      * @param data
      * @return
@@ -115,51 +334,398 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE){
+        if(raw.length > maxFreeSpace){
             throw Error.DataTooLargeException;
         }
+        if(fillPagePerThread){
+            return insertToFillPage(xid, raw);
+        }
+        while(true){
+            PageInfo pi = selectPage(raw.length);
+            long uid = insertInto(pi.pgno, xid, raw, false);
+            if(uid != 0){
+                return uid;
+            }
+        }
+    }
+
+    /**
+     * 批量插入，每次选出一个页面后把后续能放下的数据都放进去，同一页面的数据合成一条日志
+     * 数据按输入顺序放入，uid 的顺序和输入一致
+     */
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for(byte[] data : datas){
+            byte[] raw = DataItem.wrapDataItemRaw(data);
+            if(raw.length > maxFreeSpace){
+                throw Error.DataTooLargeException;
+            }
+            raws.add(raw);
+        }
+        List<Long> uids = new ArrayList<>(raws.size());
+        int i = 0;
+        while(i < raws.size()){
+            PageInfo pi = selectPage(raws.get(i).length);
+            i += insertBatchInto(pi.pgno, xid, raws, i, uids);
+        }
+        return uids;
+    }
+
+    //从raws的第from条开始尽量多地插入pgno页，uid加入uids，返回插入的条数，一条都放不下时返回0
+    private int insertBatchInto(int pgno, long xid, List<byte[]> raws, int from, List<Long> uids) throws Exception {
+        Page pg = null;
+        try{
+            pg = pc.getPage(pgno);
+        }catch (Exception e){
+            pIndex.add(pgno, 0);
+            throw e;
+        }
+        try{
+            int count = countFit(pg, raws, from, true);
+            if(count > 0 && !PageX.canInsert(pg, totalLength(raws, from, count), count, false) && !compact(pg)){
+                //整理不了，只使用连续的空闲空间
+                count = countFit(pg, raws, from, false);
+            }
+            if(count == 0){
+                return 0;
+            }
+            byte[] log = Recover.batchInsertLog(xid, pg, raws, from, count);
+            Object op = beginApply();
+            try{
+                log(xid, log);
+                for(int i = from; i < from + count; i++){
+                    short slot = PageX.insert(pg, raws.get(i));
+                    uids.add(Types.addressToUid(pgno, slot));
+                }
+            }finally {
+                endApply(op);
+            }
+            return count;
+        }finally {
+            updateFreeSpace(pgno, freeSpaceOf(pg));
+            pg.release();
+        }
+    }
+
+    //从from开始最多有多少条数据可以一起放进pg
+    private int countFit(Page pg, List<byte[]> raws, int from, boolean compactable){
+        int count = 0;
+        int length = 0;
+        while(from + count < raws.size()){
+            int next = length + raws.get(from + count).length;
+            if(!PageX.canInsert(pg, next, count + 1, compactable)){
+                break;
+            }
+            length = next;
+            count++;
+        }
+        return count;
+    }
+
+    private int totalLength(List<byte[]> raws, int from, int count){
+        int length = 0;
+        for(int i = from; i < from + count; i++){
+            length += raws.get(i).length;
+        }
+        return length;
+    }
+
+    /**
+     * 大数据切分后写入一串新分配的溢出页，再插入一个记录首页页号和长度的数据项作为引用
+     */
+    @Override
+    public long insertLarge(long xid, byte[] data) throws Exception {
+        int pageSize = pc.getPageSize();
+        int capacity = PageOverflow.capacity(pageSize);
+        int count = Math.max(1, (data.length + capacity - 1) / capacity);
+        List<int[]> runs = writePagesDirect(xid, count, (idx, next) -> {
+            int offset = idx * capacity;
+            int length = Math.min(capacity, data.length - offset);
+            return PageOverflow.initRaw(pageSize, next, data, offset, length);
+        });
+        byte[] ref = Bytes.concat(Parser.int2Byte(runs.get(0)[0]), Parser.long2Byte(data.length));
+        return insert(xid, ref);
+    }
+
+    //直接写入文件的页面的内容，idx 为页面在这一批中的序号，next 为下一页的页号，最后一页为0
+    interface PageBuilder {
+        byte[] build(int idx, int next);
+    }
+
+    /**
+     * 连续分配count个新页面，不经过缓存直接写入文件，返回每一段连续页面的 [首页页号, 页数]
+     * 遇到空闲空间表页时跳过，每一段连续的页面用一次聚集写写入
+     * 页面在写日志前落盘，日志中只记录分配了哪些页和每页写入时的槽数，不记录页面内容；
+     * 撤销时溢出页被重新初始化为空的数据页，数据页只删除写入时的那些槽
+     * 日志写入之后，数据页按实际的空闲空间放进pageIndex和空闲空间表，页尾剩下的空间给普通插入使用；
+     * 其他事务插入的数据在日志中排在这条之后，使用后面的槽，撤销时不会被一起删掉。溢出页的空闲空间为0
+     */
+    List<int[]> writePagesDirect(long xid, int count, PageBuilder builder) {
+        int pageSize = pc.getPageSize();
+        List<int[]> runs = new ArrayList<>();
+        int[] free = new int[count];
+        int[] slots = new int[count];
+        allocLock.lock();
+        try{
+            int pgno = pc.getPageNumber() + 1;
+            int i = 0;
+            while(i < count){
+                if(isMapPage(pgno)){
+                    fsm.markLoaded(pc.newPage(FreeSpaceMap.initRaw(pageSize)));
+                    pgno++;
+                    continue;
+                }
+                int n = 0;
+                while(i + n < count && !isMapPage(pgno + n)){
+                    n++;
+                }
+                ByteBuffer[] pages = new ByteBuffer[n];
+                for(int k = 0; k < n; k++){
+                    int idx = i + k;
+                    int next = idx == count - 1 ? 0 : nextDirectPgno(pgno + k + 1);
+                    byte[] raw = builder.build(idx, next);
+                    if(!PageOverflow.isOverflow(raw)){
+                        free[idx] = PageX.getFreeSpace(raw);
+                        slots[idx] = PageX.getSlotCount(raw);
+                    }
+                    pages[k] = ByteBuffer.wrap(raw);
+                }
+                int start = pc.newPagesDirect(pages);
+                assert start == pgno;
+                runs.add(new int[]{start, n});
+                pgno += n;
+                i += n;
+            }
+        }finally {
+            allocLock.unlock();
+        }
+        pc.force();
+        log(xid, Recover.newPagesLog(xid, runs, slots));
+        int idx = 0;
+        for(int[] run : runs){
+            for(int k = 0; k < run[1]; k++, idx++){
+                if(free[idx] > 0){
+                    updateFreeSpace(run[0] + k, free[idx]);
+                }else if(fsm != null){
+                    //新页的表项可能是截断前留下的旧值
+                    fsm.update(run[0] + k, 0);
+                }
+            }
+        }
+        return runs;
+    }
+
+    @Override
+    public BulkLoader bulkLoader(long xid, LongConsumer uidSink) {
+        return new BulkLoader(this, xid, uidSink);
+    }
+
+    @Override
+    public ReadableByteChannel openLarge(long uid) throws Exception {
+        DataItem di = read(uid);
+        if(di == null){
+            return null;
+        }
+        SubArray ref = di.data();
+        int first = Parser.parseInt(Arrays.copyOfRange(ref.raw, ref.start, ref.start + 4));
+        long length = Parser.parseLong(Arrays.copyOfRange(ref.raw, ref.start + 4, ref.start + 12));
+        di.release();
+        return new OverflowChannel(pc, first, length);
+    }
+
+    private boolean isMapPage(int pgno){
+        return fsm != null && fsm.isMapPage(pgno);
+    }
+
+    //从pgno开始第一个不是空闲空间表页的页号
+    private int nextDirectPgno(int pgno){
+        return isMapPage(pgno) ? pgno + 1 : pgno;
+    }
+
+    /**
+     * 插入到当前线程的填充页，页面放不下时交还给pageIndex，再取一个新的填充页
+     * 填充页不在pageIndex中，其他线程不会选到它，同一线程的连续插入落在同一页面上
+     */
+    private long insertToFillPage(long xid, byte[] raw) throws Exception {
+        Thread t = Thread.currentThread();
+        while(true){
+            Integer pgno = fillPages.remove(t);
+            if(pgno == null){
+                reclaimFillPages(false);
+                pgno = selectPage(raw.length).pgno;
+            }
+            long uid = insertInto(pgno, xid, raw, true);
+            if(uid != 0){
+                fillPages.put(t, pgno);
+                //插入期间关闭了填充页模式，页面不再保留
+                if(!fillPagePerThread && fillPages.remove(t, pgno)){
+                    returnPage(pgno);
+                }
+                return uid;
+            }
+        }
+    }
+
+    @Override
+    public void setFillPagePerThread(boolean enabled) {
+        fillPagePerThread = enabled;
+        if(!enabled){
+            reclaimFillPages(true);
+        }
+    }
+
+    //把填充页交还给pageIndex，all为false时只回收已经结束的线程的填充页
+    private void reclaimFillPages(boolean all){
+        for(Thread t : fillPages.keySet()){
+            if(all || !t.isAlive()){
+                Integer pgno = fillPages.remove(t);
+                if(pgno != null){
+                    returnPage(pgno);
+                }
+            }
+        }
+    }
+
+    private void returnPage(int pgno){
+        Page pg = null;
+        try{
+            pg = pc.getPage(pgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        updateFreeSpace(pgno, freeSpaceOf(pg));
+        pg.release();
+    }
+
+    //有数据项被引用的页面不能整理，只按连续空间计算
+    private int freeSpaceOf(Page pg){
+        return liveItems.containsKey(pg.getPageNumber()) ? PageX.getContiguousFreeSpace(pg) : PageX.getFreeSpace(pg);
+    }
 
+    private PageInfo selectPage(int length) throws Exception {
         PageInfo pi = null;
         for(int i = 0; i < 5; i++){
-            pi = pIndex.select(raw.length);
+            pi = pIndex.select(length);
             if(pi != null){
                 break;
             }else{
-                int newPgno = pc.newPage(PageOne.InitRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+                int newPgno = newDataPage();
+                updateFreeSpace(newPgno, maxFreeSpace);
             }
         }
         if(pi == null){
             throw Error.DataTooLargeException;
         }
+        return pi;
+    }
 
+    /**
+     * 向pgno页插入raw，页面无法整理出足够的空间时返回0；数据页从第2页开始，uid不会为0
+     * keep 为 true 时插入成功的页面作为填充页留给当前线程，只更新空闲空间表，不放回pageIndex
+     * 插入不持有页面锁：数据项的 before/after 期间持有页面锁并可能插入新节点，插入再加锁会和它形成死锁
+     * 同一页面同时只会被一个插入从 pageIndex 中取出，插入只写空闲区和新槽，不影响已有的数据项
+     */
+    private long insertInto(int pgno, long xid, byte[] raw, boolean keep) throws Exception {
         Page pg = null;
-        int freeSpace = 0;
         try{
-            pg = pc.getPage(pi.pgno);
+            pg = pc.getPage(pgno);
+        }catch (Exception e){
+            pIndex.add(pgno, 0);
+            throw e;
+        }
+        long uid = 0;
+        try{
+            if(!PageX.canInsert(pg, raw.length, false)){
+                //连续空间不够，先整理页面，整理不了就换一个页面
+                if(!PageX.canInsert(pg, raw.length, true) || !compact(pg)){
+                    return 0;
+                }
+            }
             byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-            short offset = PageX.insert(pg, raw);
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+            Object op = beginApply();
+            try{
+                log(xid, log);
+                short slot = PageX.insert(pg, raw);
+                uid = Types.addressToUid(pgno, slot);
+            }finally {
+                endApply(op);
+            }
+            return uid;
         }finally {
             //将取出的pg重新插入pIndex
-            if(pg != null){
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+            int freeSpace = freeSpaceOf(pg);
+            if(keep && uid != 0){
+                if(fsm != null){
+                    fsm.update(pgno, freeSpace);
+                }
             }else{
-                pIndex.add(pi.pgno, freeSpace);
+                updateFreeSpace(pgno, freeSpace);
             }
+            pg.release();
+        }
+    }
+
+    //分配一个新的数据页，轮到空闲空间表页的位置时先分配表页
+    private int newDataPage(){
+        allocLock.lock();
+        try{
+            if(isMapPage(pc.getPageNumber() + 1)){
+                int mapPgno = pc.newPage(FreeSpaceMap.initRaw(pc.getPageSize()));
+                fsm.markLoaded(mapPgno);
+            }
+            return pc.newPage(PageX.initRaw(pc.getPageSize()));
+        }finally {
+            allocLock.unlock();
+        }
+    }
+
+    //页面重新放回pageIndex，同时更新空闲空间表
+    private void updateFreeSpace(int pgno, int freeSpace){
+        pIndex.add(pgno, freeSpace);
+        if(fsm != null){
+            fsm.update(pgno, freeSpace);
+        }
+    }
+
+    /**
+     * 整理页面，页面中有数据项在缓存中时不能移动数据
+     * 整理在页面锁内进行，和解析数据项互斥；锁被占用时直接放弃，不等待
+     */
+    private boolean compact(Page pg) {
+        if(!pg.tryLock()){
+            return false;
+        }
+        try{
+            if(liveItems.containsKey(pg.getPageNumber())){
+                return false;
+            }
+            PageX.compact(pg);
+            return true;
+        }finally {
+            pg.unlock();
         }
     }
 
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
+    //关闭前做一次检查点，删除不再需要的日志段
     @Override
     public void close() {
+        if(checkpointer != null) {
+            checkpointer.shutdown();
+        }
+        checkpoint();
         super.close();
-        logger.close();
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        //先关闭页面缓存停掉后台写线程，它在写页面前还需要刷日志
         pc.close();
+        logger.close();
     }
 
 
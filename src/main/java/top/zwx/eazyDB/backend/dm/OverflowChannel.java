@@ -0,0 +1,81 @@
+package top.zwx.eazyDB.backend.dm;
+
+import top.zwx.eazyDB.backend.dm.page.Page;
+import top.zwx.eazyDB.backend.dm.page.PageOverflow;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 顺着溢出页链读取大数据
+ * 每次读取直接从页面中把需要的区间拷贝到调用方的缓冲区，不拼出完整的数据
+ * 溢出页写入后不再修改，读取时只引用页面，不加锁
+ */
+class OverflowChannel implements ReadableByteChannel {
+    private PageCache pc;
+    private int pgno;                   //当前读到的溢出页
+    private int pos;                    //当前页中已经读过的字节数
+    private long remaining;             //整个数据还没有读的字节数
+    private boolean open;
+
+    OverflowChannel(PageCache pc, int firstPgno, long length) {
+        this.pc = pc;
+        this.pgno = firstPgno;
+        this.remaining = length;
+        this.open = true;
+        //溢出页基本是连续分配的，提前预读
+        int pages = (int) Math.min(length / PageOverflow.capacity(pc.getPageSize()) + 1, Integer.MAX_VALUE - firstPgno);
+        pc.prefetch(firstPgno, firstPgno + pages);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if(!open) {
+            throw new ClosedChannelException();
+        }
+        if(remaining == 0) {
+            return -1;
+        }
+        int n = 0;
+        while(dst.hasRemaining() && remaining > 0) {
+            Page pg;
+            try{
+                pg = pc.getPage(pgno);
+            }catch (Exception e){
+                throw new IOException(e);
+            }
+            try{
+                int length = PageOverflow.getLength(pg);
+                if(pos >= length) {
+                    pgno = PageOverflow.getNext(pg);
+                    pos = 0;
+                    continue;
+                }
+                int k = (int) Math.min(Math.min(length - pos, dst.remaining()), remaining);
+                ByteBuffer src = pg.getBuffer().duplicate();
+                src.position(PageOverflow.OF_DATA + pos);
+                src.limit(PageOverflow.OF_DATA + pos + k);
+                dst.put(src);
+                pos += k;
+                remaining -= k;
+                n += k;
+            }finally {
+                pg.release();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -5,15 +5,24 @@ import top.zwx.eazyDB.backend.common.SubArray;
 import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
 import top.zwx.eazyDB.backend.dm.logger.Logger;
 import top.zwx.eazyDB.backend.dm.page.Page;
+import top.zwx.eazyDB.backend.dm.page.PageOne;
 import top.zwx.eazyDB.backend.dm.page.PageX;
 import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+import top.zwx.eazyDB.backend.dm.pageIndex.FreeSpaceMap;
 import top.zwx.eazyDB.backend.tm.TransactionManager;
 import top.zwx.eazyDB.backend.utils.Panic;
 import top.zwx.eazyDB.backend.utils.Parser;
+import top.zwx.eazyDB.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 /**
  * 崩溃后事务恢复策略
  * 规定1：正在进行的事务，不会读取其他任何未提交的事务产生的数据。
@@ -22,24 +31,36 @@ import java.util.Map.Entry;
  * 并发情况下日志的恢复：
  * 1. 重做所有崩溃时已完成（committed 或 aborted）的事务
  * 2. 撤销所有崩溃时未完成（active）的事务
+ * <p>
+ * 并行恢复：
+ * 重做时由一个线程顺序读日志，按页号分给各个重做线程，同一页面的日志由同一个线程按日志顺序重做；
+ * 撤销时每个事务由一个线程倒序撤销，不同事务可能修改同一页面的页头，每条日志在页面锁内撤销
  */
 public class Recover {
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_NEW_PAGES = 2;
+    private static final byte LOG_TYPE_BATCH_INSERT = 3;
+    private static final byte LOG_TYPE_DELTA = 4;
+    private static final byte LOG_TYPE_FUZZY_CHECKPOINT = 5;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 2;  //重做线程会阻塞在读页面上，取核数的两倍
+    private static final int REDO_BATCH = 64;       //读日志的线程攒够这么多条再交给重做线程，减少线程间的交接
+    private static final int REDO_QUEUE = 16;       //每个重做线程排队的批数上限，队列满时读日志的线程等待
+
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
     }
     static class UpdateLogInfo{
         long xid;
         int pgno;
-        short offset;
+        short slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
@@ -51,103 +72,344 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID + 8;           //代表更新操作的唯一标识符（UID）字段的起始位置。占8字节
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;    //代表旧值（OldRaw）和新值（NewRaw）字段的起始位置。
 
+    /**
+     * 上次没有正常关闭时，打开数据库后先进行恢复
+     * 数据库文件按区段预先扩展，第一页记录的页数可能还没有落盘，
+     * 所以先按日志中出现过的最大页号截断文件，页数随之更新，再重做和撤销
+     *
+     * 有检查点时，重做从脏页表中最早的 recLSN 开始，BeginLsn 之前的日志只重做脏页表中的页面上、不早于该页 recLSN 的部分，
+     * 其余的修改在检查点时已经落盘；撤销从活跃事务表中最早的第一条日志开始。检查点时的页数也已经落盘，截断不会小于它
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc){
+        recover(tm, lg, pc, DEFAULT_THREADS);
+    }
+
+    //threads 为重做和撤销使用的线程数，不大于1时在当前线程中依次恢复
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int threads){
+        CheckpointLogInfo ci = null;
+        long redoLsn = -1, undoLsn = -1;
+        int maxPgno = 0;
+        long checkpoint = lg.getCheckpoint();
+        if(checkpoint >= 0){
+            lg.seek(checkpoint);
+            byte[] log = lg.next();
+            if(log == null || log[OF_TYPE] != LOG_TYPE_FUZZY_CHECKPOINT){
+                Panic.panic(Error.BadLogFileException);
+            }
+            ci = parseCheckpointLog(log);
+            redoLsn = ci.redoLsn;
+            undoLsn = ci.undoLsn;
+            maxPgno = ci.pageCount;
+        }
+
+        startAt(lg, Math.min(redoLsn, undoLsn));
+        Set<Integer> pgnos = new HashSet<>();
+        while(true){
+            byte[] log = lg.next();
+            if(log == null) break;
+            for(int pgno : pagesOf(log)){
+                pgnos.add(pgno);
+                if(pgno > maxPgno){
+                    maxPgno = pgno;
+                }
+            }
+        }
+        if(maxPgno == 0){
+            maxPgno = 1;
+        }
+        pc.truncateByBgno(maxPgno);
+
+        redoTransactions(tm, lg, pc, ci, threads);
+        undoTransactions(tm, lg, pc, undoLsn, threads);
+        repairFreeSpaceMap(pc, pgnos);
+    }
+
+    //lsn 小于 0 时从头读
+    private static void startAt(Logger lg, long lsn){
+        if(lsn < 0){
+            lg.rewind();
+        }else{
+            lg.seek(lsn);
+        }
+    }
+
+    //空闲空间表不写日志，日志中出现过的页面的表项可能过时，按页面的实际内容重新计算
+    private static void repairFreeSpaceMap(PageCache pc, Set<Integer> pgnos){
+        Page one = null;
+        try{
+            one = pc.getPage(1);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        boolean hasFsm = PageOne.hasFreeSpaceMap(one);
+        one.release();
+        if(hasFsm){
+            new FreeSpaceMap(pc).repair(pgnos);
+        }
+    }
+
     public static byte[] insertLog(long xid, Page pg, byte[] raw){
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, xidRaw, offsetRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte(PageX.nextSlot(pg));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, raw);
     }
 
     //撤销（UNDO）事务，将所有处于 未完成状态（active） 的事务所做的操作回滚
-    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc){
+    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc, long undoLsn, int threads){
         Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
+        startAt(lg, undoLsn);
         while(true){
             byte[] log = lg.next();
             if(log == null) break;
-            if(isInsertLog(log)){
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)){
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            }else{
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)){
-                    if(!logCache.containsKey(xid)){
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+            long xid = xidOf(log);
+            if(tm.isActive(xid)){
+                if(!logCache.containsKey(xid)){
+                    logCache.put(xid, new ArrayList<>());
                 }
+                logCache.get(xid).add(log);
             }
         }
         //对所有active log进行倒序undo
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for(int i = logs.size() - 1; i >= 0; i--){
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)){
-                    doInsertLog(pc, log, UNDO);
-                }else{
-                    doUpdateLog(pc, log, UNDO);
+        if(threads <= 1 || logCache.size() <= 1){
+            for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
+                List<byte[]> logs = entry.getValue();
+                for(int i = logs.size() - 1; i >= 0; i--){
+                    doLog(pc, logs.get(i), UNDO);
                 }
+                tm.abort(entry.getKey());
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, logCache.size()), r -> {
+            Thread t = new Thread(r, "undo");
+            t.setDaemon(true);
+            return t;
+        });
+        try{
+            List<Future<?>> futures = new ArrayList<>();
+            for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
+                futures.add(pool.submit(() -> {
+                    List<byte[]> logs = entry.getValue();
+                    for(int i = logs.size() - 1; i >= 0; i--){
+                        undoLocked(pc, logs.get(i));
+                    }
+                    tm.abort(entry.getKey());
+                }));
             }
-            tm.abort(entry.getKey());
+            for(Future<?> f : futures){
+                f.get();
+            }
+        }catch (Exception e){
+            Panic.panic(e);
+        }finally {
+            pool.shutdown();
+        }
+    }
+
+    //和其他事务并行撤销时，单个页面上的日志在页面锁内撤销；新页面只属于分配它们的事务，不需要加锁
+    private static void undoLocked(PageCache pc, byte[] log){
+        List<Integer> pgnos = pagesOf(log);
+        if(pgnos.size() != 1){
+            doLog(pc, log, UNDO);
+            return;
+        }
+        Page pg = null;
+        try{
+            pg = pc.getPage(pgnos.get(0));
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        pg.lock();
+        try{
+            doLog(pc, log, UNDO);
+        }finally {
+            pg.unlock();
+            pg.release();
         }
     }
 
 
     // insertLog:
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Raw]
     //LogType: 记录日志类型，表示这是一条插入日志（LOG_TYPE_INSERT）。
     //XID: 事务 ID，表示是哪一个事务执行了插入操作。
     //Pgno: 页号，表示插入操作所在的页面。
-    //Offset: 偏移量，表示数据在页面中的位置。
+    //Slot: 槽号，表示数据放在页面的哪个槽中。
     //Raw: 原始数据，表示插入的数据内容
     private static final int OF_INSERT_PGNO = OF_XID + 8;           //页号，占4字节
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO + 4; //偏移量，占2字节
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;  //原始数据
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO + 4;   //槽号，占2字节
+    private static final int OF_INSERT_RAW = OF_INSERT_SLOT + 2;    //原始数据
     //重做（REDO）事务，将所有已完成（commit） 的事务所做的操作回滚
-    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
+    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc, CheckpointLogInfo ci, int threads) {
+        startAt(lg, ci == null ? -1 : ci.redoLsn);
+        RedoWorker[] workers = new RedoWorker[threads > 1 ? threads : 0];
+        for(int i = 0; i < workers.length; i++){
+            workers[i] = new RedoWorker(pc, i);
+            workers[i].start();
+        }
         while (true) {
             byte[] log = lg.next();
             if (log == null) break;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)){
-                    doInsertLog(pc,log,REDO);
+            if(!tm.isActive(xidOf(log))){
+                if(ci != null && !needRedo(ci, log, lg.getLsn())){
+                    continue;
                 }
-            }else{
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)){
-                    doUpdateLog(pc,log,REDO);
+                List<Integer> pgnos = pagesOf(log);
+                //新页面和检查点的日志涉及多个或没有页面，重做时什么都不做，留在当前线程
+                if(workers.length == 0 || pgnos.size() != 1){
+                    doLog(pc, log, REDO);
+                }else{
+                    workers[Math.floorMod(pgnos.get(0), workers.length)].submit(log);
                 }
             }
         }
+        for(RedoWorker w : workers){
+            w.finish();
+        }
+    }
+
+    //重做线程，按收到的顺序重做分给它的页面上的日志
+    private static class RedoWorker extends Thread {
+        private static final List<byte[]> END = new ArrayList<>();
+
+        private PageCache pc;
+        private BlockingQueue<List<byte[]>> queue;
+        private List<byte[]> batch;                 //还没交给重做线程的日志，只由读日志的线程访问
+
+        RedoWorker(PageCache pc, int id) {
+            this.pc = pc;
+            this.queue = new ArrayBlockingQueue<>(REDO_QUEUE);
+            this.batch = new ArrayList<>(REDO_BATCH);
+            setName("redo-" + id);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                List<byte[]> logs;
+                try{
+                    logs = queue.take();
+                }catch (InterruptedException e){
+                    return;
+                }
+                if(logs == END) {
+                    return;
+                }
+                for(byte[] log : logs) {
+                    doLog(pc, log, REDO);
+                }
+            }
+        }
+
+        void submit(byte[] log) {
+            batch.add(log);
+            if(batch.size() >= REDO_BATCH) {
+                put(batch);
+                batch = new ArrayList<>(REDO_BATCH);
+            }
+        }
+
+        private void put(List<byte[]> logs) {
+            try{
+                queue.put(logs);
+            }catch (InterruptedException e){
+                Panic.panic(e);
+            }
+        }
+
+        //排队的日志全部重做完之后返回
+        void finish() {
+            if(!batch.isEmpty()) {
+                put(batch);
+            }
+            put(END);
+            try{
+                join();
+            }catch (InterruptedException e){
+                Panic.panic(e);
+            }
+        }
+    }
+
+    //检查点开始前的日志，只有修改的页面在脏页表中、且不早于该页的 recLSN 时才需要重做
+    private static boolean needRedo(CheckpointLogInfo ci, byte[] log, long lsn){
+        if(lsn >= ci.beginLsn){
+            return true;
+        }
+        for(int pgno : pagesOf(log)){
+            Long recLsn = ci.dirtyPages.get(pgno);
+            if(recLsn != null && lsn >= recLsn){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //按日志类型重做或撤销一条日志
+    private static void doLog(PageCache pc, byte[] log, int flag){
+        switch(log[OF_TYPE]){
+            case LOG_TYPE_INSERT:
+                doInsertLog(pc, log, flag);
+                break;
+            case LOG_TYPE_BATCH_INSERT:
+                doBatchInsertLog(pc, log, flag);
+                break;
+            case LOG_TYPE_DELTA:
+                doDeltaLog(pc, log, flag);
+                break;
+            case LOG_TYPE_NEW_PAGES:
+                //直接写入的页面在写日志之前已经落盘，不需要重做
+                if(flag == UNDO){
+                    undoNewPagesLog(pc, log);
+                }
+                break;
+            case LOG_TYPE_FUZZY_CHECKPOINT:
+                break;
+            default:
+                doUpdateLog(pc, log, flag);
+        }
+    }
+
+    //每种日志的XID都在同一位置
+    private static long xidOf(byte[] log){
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID + 8));
+    }
+
+    //日志涉及的页面
+    private static List<Integer> pagesOf(byte[] log){
+        switch(log[OF_TYPE]){
+            case LOG_TYPE_INSERT:
+                return Collections.singletonList(parseInsertLog(log).pgno);
+            case LOG_TYPE_BATCH_INSERT:
+                return Collections.singletonList(parseBatchInsertLog(log).pgno);
+            case LOG_TYPE_NEW_PAGES:
+                return parseNewPagesLog(log).pgnos;
+            case LOG_TYPE_DELTA:
+                return Collections.singletonList(parseDeltaLog(log).pgno);
+            case LOG_TYPE_FUZZY_CHECKPOINT:
+                return Collections.emptyList();
+            default:
+                return Collections.singletonList(parseUpdateLog(log).pgno);
+        }
     }
 
     //更新日志的恢复操作
     private static void doUpdateLog(PageCache pc, byte[] log, int flag){
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
         if(flag == REDO){
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.newRaw;
         }else{
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.oldRaw;
         }
         Page pg = null;
@@ -157,14 +419,32 @@ public class Recover {
             Panic.panic(e);
         }
         try{
-            PageX.recoverUpdate(pg,raw,offset);
+            PageX.recoverUpdate(pg,raw,slot);
         }finally {
             pg.release();
         }
     }
 
+    /**
+     * 数据项 before/after 之间修改的日志，比较修改前后的数据，只记录变化的字节区间
+     * 区间的日志比完整的新旧数据还大时（大部分字节都变了）仍然记录完整的新旧数据
+     */
     public static byte[] updateLog(long xid, DataItem di){
-        byte[] logType = {LOG_TYPE_INSERT};
+        byte[] oldRaw = di.getOldRaw();
+        SubArray raw = di.getRaw();
+        List<int[]> ranges = diff(oldRaw, raw.raw, raw.start);
+        int deltaSize = OF_DELTA_RANGES;
+        for(int[] r : ranges){
+            deltaSize += 4 + 2 * r[1];
+        }
+        if(deltaSize < OF_UPDATE_RAW + 2 * oldRaw.length){
+            return deltaLog(xid, di.getUid(), ranges, oldRaw, 0, raw.raw, raw.start);
+        }
+        return fullUpdateLog(xid, di);
+    }
+
+    private static byte[] fullUpdateLog(long xid, DataItem di){
+        byte[] logType = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
@@ -178,7 +458,7 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short) (uid & ((1L << 16) - 1));
+        li.slot = (short) (uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -196,10 +476,12 @@ public class Recover {
             Panic.panic(e);
         }
         try{
+            //撤销插入直接删除数据，回收空间，槽保留为已删除状态
             if(flag == UNDO){
-                DataItem.setDataItemRawInvalid(li.raw);
+                PageX.recoverRemove(pg,li.slot);
+            }else{
+                PageX.recoverInsert(pg,li.raw,li.slot);
             }
-            PageX.recoverInsert(pg,li.raw,li.offset);
         }finally {
             pg.release();
         }
@@ -209,13 +491,344 @@ public class Recover {
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_RAW));
+        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
-    //判断给定日志是否是一条插入日志
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    // newPagesLog:
+    // [LogType] [XID] [RunCount] [FirstPgno] [PageCount] ... [SlotCount] ...
+    // 记录直接写入文件的新页面（大数据的溢出页、批量装载的数据页），每段连续的页面记录首页页号和页数
+    // 之后按页面顺序记录每页写入时的槽数，各占2字节，溢出页为0
+    // 页面内容在写日志之前已经落盘，日志本身不记录内容
+    private static final int OF_NEW_PAGES_COUNT = OF_XID + 8;
+    private static final int OF_NEW_PAGES_RUNS = OF_NEW_PAGES_COUNT + 4;
+
+    static class NewPagesLogInfo {
+        long xid;
+        List<Integer> pgnos;
+        List<Integer> slots;
+    }
+
+    public static byte[] newPagesLog(long xid, List<int[]> runs, int[] slots){
+        byte[] logTypeRaw = {LOG_TYPE_NEW_PAGES};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] countRaw = Parser.int2Byte(runs.size());
+        byte[] runsRaw = new byte[runs.size() * 8];
+        for(int i = 0; i < runs.size(); i++){
+            System.arraycopy(Parser.int2Byte(runs.get(i)[0]), 0, runsRaw, i * 8, 4);
+            System.arraycopy(Parser.int2Byte(runs.get(i)[1]), 0, runsRaw, i * 8 + 4, 4);
+        }
+        byte[] slotsRaw = new byte[slots.length * 2];
+        for(int i = 0; i < slots.length; i++){
+            System.arraycopy(Parser.short2Byte((short) slots[i]), 0, slotsRaw, i * 2, 2);
+        }
+        return Bytes.concat(logTypeRaw, xidRaw, countRaw, runsRaw, slotsRaw);
+    }
+
+    private static NewPagesLogInfo parseNewPagesLog(byte[] log){
+        NewPagesLogInfo li = new NewPagesLogInfo();
+        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_NEW_PAGES_COUNT));
+        int count = Parser.parseInt(Arrays.copyOfRange(log, OF_NEW_PAGES_COUNT, OF_NEW_PAGES_RUNS));
+        li.pgnos = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            int pos = OF_NEW_PAGES_RUNS + i * 8;
+            int first = Parser.parseInt(Arrays.copyOfRange(log, pos, pos + 4));
+            int n = Parser.parseInt(Arrays.copyOfRange(log, pos + 4, pos + 8));
+            for(int k = 0; k < n; k++){
+                li.pgnos.add(first + k);
+            }
+        }
+        //旧格式的日志没有记录槽数，按0处理，撤销时整页重新初始化
+        li.slots = new ArrayList<>();
+        int pos = OF_NEW_PAGES_RUNS + count * 8;
+        for(int i = 0; i < li.pgnos.size(); i++, pos += 2){
+            li.slots.add(pos + 2 > log.length ? 0 : Parser.parseShort(Arrays.copyOfRange(log, pos, pos + 2)) & 0xFFFF);
+        }
+        return li;
+    }
+
+    /**
+     * 撤销直接写入的新页面，之后由空闲空间表的修复更新它们的表项
+     * 溢出页重新初始化为空的数据页；批量装载的数据页只删除写入时的那些槽，
+     * 装载之后其他事务插入到页尾空闲空间的数据使用后面的槽，不受影响
+     */
+    private static void undoNewPagesLog(PageCache pc, byte[] log){
+        NewPagesLogInfo li = parseNewPagesLog(log);
+        for(int i = 0; i < li.pgnos.size(); i++){
+            Page pg = null;
+            try{
+                pg = pc.getPage(li.pgnos.get(i));
+            }catch (Exception e){
+                Panic.panic(e);
+            }
+            try{
+                int slots = li.slots.get(i);
+                if(slots == 0){
+                    pg.put(0, PageX.initRaw(pc.getPageSize()), 0, pc.getPageSize());
+                    pg.setDirty(true);
+                }
+                for(int slot = 0; slot < slots; slot++){
+                    PageX.recoverRemove(pg, (short) slot);
+                }
+            }finally {
+                pg.release();
+            }
+        }
+    }
+
+    // deltaLog:
+    // [LogType] [XID] [UID] [RangeCount] [Offset] [Length] [Old] [New] [Offset] [Length] [Old] [New] ...
+    // 只记录数据项中变化的字节区间，Offset 为区间相对数据项起始位置的偏移，Offset 和 Length 各占2字节
+    private static final int OF_DELTA_UID = OF_XID + 8;
+    private static final int OF_DELTA_COUNT = OF_DELTA_UID + 8;
+    private static final int OF_DELTA_RANGES = OF_DELTA_COUNT + 2;
+    private static final int MERGE_GAP = 2;            //两个区间相隔不超过这么多字节时合并，比多记一个区间头更省
+
+    static class DeltaLogInfo {
+        long xid;
+        int pgno;
+        short slot;
+        List<Integer> offsets;
+        List<byte[]> oldRaws;
+        List<byte[]> newRaws;
+    }
+
+    //找出oldRaw和从newStart开始的newRaw中不同的字节区间，返回 [偏移, 长度]
+    private static List<int[]> diff(byte[] oldRaw, byte[] newRaw, int newStart){
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while(i < oldRaw.length){
+            if(oldRaw[i] == newRaw[newStart + i]){
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            while(end < oldRaw.length){
+                if(oldRaw[end] != newRaw[newStart + end]){
+                    end++;
+                    continue;
+                }
+                int same = end;
+                while(same < oldRaw.length && same - end <= MERGE_GAP && oldRaw[same] == newRaw[newStart + same]){
+                    same++;
+                }
+                if(same < oldRaw.length && same - end <= MERGE_GAP){
+                    end = same;
+                }else{
+                    break;
+                }
+            }
+            ranges.add(new int[]{start, end - start});
+            i = end;
+        }
+        return ranges;
+    }
+
+    //修改数据项中从offset开始的一段字节的日志，用于不经过 before/after 的原地更新
+    public static byte[] deltaLog(long xid, long uid, int offset, byte[] oldBytes, byte[] newBytes){
+        //区间偏移加上起始位置就是在oldBytes、newBytes中的下标
+        return deltaLog(xid, uid, Collections.singletonList(new int[]{offset, oldBytes.length}), oldBytes, -offset, newBytes, -offset);
+    }
+
+    private static byte[] deltaLog(long xid, long uid, List<int[]> ranges, byte[] oldRaw, int oldStart, byte[] newRaw, int newStart){
+        int size = OF_DELTA_RANGES;
+        for(int[] r : ranges){
+            size += 4 + 2 * r[1];
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(LOG_TYPE_DELTA);
+        buf.putLong(xid);
+        buf.putLong(uid);
+        buf.putShort((short) ranges.size());
+        for(int[] r : ranges){
+            buf.putShort((short) r[0]);
+            buf.putShort((short) r[1]);
+            buf.put(oldRaw, oldStart + r[0], r[1]);
+            buf.put(newRaw, newStart + r[0], r[1]);
+        }
+        return buf.array();
+    }
+
+    private static DeltaLogInfo parseDeltaLog(byte[] log){
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        DeltaLogInfo li = new DeltaLogInfo();
+        li.xid = buf.getLong(OF_XID);
+        long uid = buf.getLong(OF_DELTA_UID);
+        li.slot = (short) (uid & ((1L << 16) - 1));
+        li.pgno = (int) (uid >>> 32);
+        int count = buf.getShort(OF_DELTA_COUNT) & 0xFFFF;
+        li.offsets = new ArrayList<>(count);
+        li.oldRaws = new ArrayList<>(count);
+        li.newRaws = new ArrayList<>(count);
+        buf.position(OF_DELTA_RANGES);
+        for(int i = 0; i < count; i++){
+            li.offsets.add(buf.getShort() & 0xFFFF);
+            int length = buf.getShort() & 0xFFFF;
+            byte[] oldRaw = new byte[length];
+            byte[] newRaw = new byte[length];
+            buf.get(oldRaw);
+            buf.get(newRaw);
+            li.oldRaws.add(oldRaw);
+            li.newRaws.add(newRaw);
+        }
+        return li;
+    }
+
+    //重做写入新的字节，撤销写回旧的字节
+    private static void doDeltaLog(PageCache pc, byte[] log, int flag){
+        DeltaLogInfo li = parseDeltaLog(log);
+        Page pg = null;
+        try{
+            pg = pc.getPage(li.pgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        try{
+            for(int i = 0; i < li.offsets.size(); i++){
+                byte[] raw = flag == REDO ? li.newRaws.get(i) : li.oldRaws.get(i);
+                PageX.recoverDelta(pg, raw, li.slot, li.offsets.get(i));
+            }
+        }finally {
+            pg.release();
+        }
+    }
+
+    // batchInsertLog:
+    // [LogType] [XID] [Pgno] [FirstSlot] [Count] [Length] [Raw] [Length] [Raw] ...
+    // 批量插入时同一页面上的多条数据合成一条日志，数据使用从 FirstSlot 开始的连续槽号，Length 占2字节
+    private static final int OF_BATCH_PGNO = OF_XID + 8;
+    private static final int OF_BATCH_SLOT = OF_BATCH_PGNO + 4;
+    private static final int OF_BATCH_COUNT = OF_BATCH_SLOT + 2;
+    private static final int OF_BATCH_RAWS = OF_BATCH_COUNT + 2;
+
+    static class BatchInsertLogInfo {
+        long xid;
+        int pgno;
+        short firstSlot;
+        List<byte[]> raws;
+    }
+
+    //raws中从from开始的count条数据将依次插入pg
+    public static byte[] batchInsertLog(long xid, Page pg, List<byte[]> raws, int from, int count){
+        int size = OF_BATCH_RAWS;
+        for(int i = from; i < from + count; i++){
+            size += 2 + raws.get(i).length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(LOG_TYPE_BATCH_INSERT);
+        buf.putLong(xid);
+        buf.putInt(pg.getPageNumber());
+        buf.putShort(PageX.nextSlot(pg));
+        buf.putShort((short) count);
+        for(int i = from; i < from + count; i++){
+            buf.putShort((short) raws.get(i).length);
+            buf.put(raws.get(i));
+        }
+        return buf.array();
+    }
+
+    private static BatchInsertLogInfo parseBatchInsertLog(byte[] log){
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        BatchInsertLogInfo li = new BatchInsertLogInfo();
+        li.xid = buf.getLong(OF_XID);
+        li.pgno = buf.getInt(OF_BATCH_PGNO);
+        li.firstSlot = buf.getShort(OF_BATCH_SLOT);
+        int count = buf.getShort(OF_BATCH_COUNT) & 0xFFFF;
+        li.raws = new ArrayList<>(count);
+        buf.position(OF_BATCH_RAWS);
+        for(int i = 0; i < count; i++){
+            byte[] raw = new byte[buf.getShort() & 0xFFFF];
+            buf.get(raw);
+            li.raws.add(raw);
+        }
+        return li;
+    }
+
+    //撤销时倒序删除，和单条插入日志一样只保留已删除的槽
+    private static void doBatchInsertLog(PageCache pc, byte[] log, int flag){
+        BatchInsertLogInfo li = parseBatchInsertLog(log);
+        Page pg = null;
+        try{
+            pg = pc.getPage(li.pgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        try{
+            if(flag == UNDO){
+                for(int i = li.raws.size() - 1; i >= 0; i--){
+                    PageX.recoverRemove(pg, (short) (li.firstSlot + i));
+                }
+            }else{
+                for(int i = 0; i < li.raws.size(); i++){
+                    PageX.recoverInsert(pg, li.raws.get(i), (short) (li.firstSlot + i));
+                }
+            }
+        }finally {
+            pg.release();
+        }
+    }
+
+    // fuzzyCheckpointLog:
+    // [LogType] [XID] [BeginLsn] [PageCount] [DptSize] [Pgno RecLsn]... [AttSize] [Xid FirstLsn]...
+    // XID 固定为超级事务 0。BeginLsn 之前写日志的修改都已经改到页面上，
+    // 脏页表（DPT）记下当时还没落盘的页面和它们的 recLSN，活跃事务表（ATT）记下当时活跃的事务和它们的第一条日志
+    private static final int OF_FUZZY_BEGIN = OF_XID + 8;
+    private static final int OF_FUZZY_PAGES = OF_FUZZY_BEGIN + 8;
+    private static final int OF_FUZZY_DPT = OF_FUZZY_PAGES + 4;
+
+    static class CheckpointLogInfo {
+        long beginLsn;
+        long redoLsn;                       //脏页表中最早的 recLSN，不晚于 BeginLsn
+        long undoLsn;                       //活跃事务表中最早的第一条日志，不晚于 BeginLsn
+        int pageCount;
+        Map<Integer, Long> dirtyPages;
+        Map<Long, Long> activeXids;
+    }
+
+    public static byte[] fuzzyCheckpointLog(long beginLsn, int pageCount, Map<Integer, Long> dirtyPages, Map<Long, Long> activeXids){
+        ByteBuffer buf = ByteBuffer.allocate(OF_FUZZY_DPT + 4 + dirtyPages.size() * 12 + 4 + activeXids.size() * 16);
+        buf.put(LOG_TYPE_FUZZY_CHECKPOINT);
+        buf.putLong(0);
+        buf.putLong(beginLsn);
+        buf.putInt(pageCount);
+        buf.putInt(dirtyPages.size());
+        for(Entry<Integer, Long> e : dirtyPages.entrySet()){
+            buf.putInt(e.getKey());
+            buf.putLong(e.getValue());
+        }
+        buf.putInt(activeXids.size());
+        for(Entry<Long, Long> e : activeXids.entrySet()){
+            buf.putLong(e.getKey());
+            buf.putLong(e.getValue());
+        }
+        return buf.array();
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log){
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        CheckpointLogInfo li = new CheckpointLogInfo();
+        li.beginLsn = li.redoLsn = li.undoLsn = buf.getLong(OF_FUZZY_BEGIN);
+        li.pageCount = buf.getInt(OF_FUZZY_PAGES);
+        buf.position(OF_FUZZY_DPT);
+        int n = buf.getInt();
+        li.dirtyPages = new HashMap<>(n * 2);
+        for(int i = 0; i < n; i++){
+            int pgno = buf.getInt();
+            long recLsn = buf.getLong();
+            li.dirtyPages.put(pgno, recLsn);
+            li.redoLsn = Math.min(li.redoLsn, recLsn);
+        }
+        n = buf.getInt();
+        li.activeXids = new HashMap<>(n * 2);
+        for(int i = 0; i < n; i++){
+            long xid = buf.getLong();
+            long firstLsn = buf.getLong();
+            li.activeXids.put(xid, firstLsn);
+            li.undoLsn = Math.min(li.undoLsn, firstLsn);
+        }
+        return li;
     }
 }
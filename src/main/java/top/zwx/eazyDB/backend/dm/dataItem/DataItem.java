@@ -4,10 +4,10 @@ import com.google.common.primitives.Bytes;
 import top.zwx.eazyDB.backend.common.SubArray;
 import top.zwx.eazyDB.backend.dm.DataManagerImpl;
 import top.zwx.eazyDB.backend.dm.page.Page;
+import top.zwx.eazyDB.backend.dm.page.PageX;
 import top.zwx.eazyDB.backend.utils.Parser;
 import top.zwx.eazyDB.backend.utils.Types;
 
-import java.util.Arrays;
 
 //向上层提供的数据抽象
 public interface DataItem {
@@ -16,6 +16,7 @@ public interface DataItem {
     void before();
     void after(long xid);
     void unBefore();
+    void update(long xid, int offset, byte[] data);
     void release();
 
     void lock();
@@ -38,12 +39,23 @@ public interface DataItem {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
 
-    //从页面的offset处解析出dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
-        byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw,offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length] ,pg, uid, dm);
+    /**
+     * 从页面的slot槽中解析出dataitem，调用时需持有页面锁，避免页面整理同时移动数据
+     * 页面在堆外的页帧中，SubArray 需要字节数组，数据项拿到的是这一条数据的副本，修改后由数据项写回页面
+     */
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm) {
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
+        int offset = PageX.getOffset(pg, slot);
+        if(offset == 0) {
+            //数据已被删除，返回一个非法的数据项
+            byte[] dead = new byte[DataItemImpl.OF_DATA];
+            setDataItemRawInvalid(dead);
+            return new DataItemImpl(new SubArray(dead, 0, dead.length), pg, uid, dm);
+        }
+        short size = pg.getBuffer().getShort(offset + DataItemImpl.OF_SIZE);
+        int length = size + DataItemImpl.OF_DATA;
+        byte[] raw = new byte[length];
+        pg.get(offset, raw, 0, length);
+        return new DataItemImpl(new SubArray(raw, 0, length), pg, uid, dm);
     }
 }
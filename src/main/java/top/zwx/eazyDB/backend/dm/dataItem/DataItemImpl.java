@@ -6,10 +6,10 @@ import top.zwx.eazyDB.backend.dm.DataManagerImpl;
 import top.zwx.eazyDB.backend.dm.Recover;
 import top.zwx.eazyDB.backend.dm.logger.Logger;
 import top.zwx.eazyDB.backend.dm.page.Page;
+import top.zwx.eazyDB.backend.dm.page.PageX;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * 向上层提供的数据抽象
@@ -17,6 +17,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * [ValidFlag] [DataSize] [Data]
  * ValidFlag 1字节，0为合法，1为非法
  * DataSize  2字节，标识Data的长度
+ *
+ * 读多写少，只读的数据项不需要修改前的旧数据，oldRaw 在第一次 before() 时才分配，之后复用
+ * raw 是页面中这条数据的副本，同一个 uid 在缓存中只有一个数据项；after() 和 update() 在页面锁内把修改写回页面
+ * 读写锁使用 StampedLock：一个对象，加读锁不分配内存；不可重入，同一线程不能在持有写锁时再加读锁
+ * StampedLock 不检查持有者，写锁记下戳和持有线程，解锁时核对；和原来的读写锁一样，没有匹配的解锁抛出 IllegalMonitorStateException
  */
 public class DataItemImpl implements DataItem {
     static final int OF_VALID = 0;
@@ -24,47 +29,105 @@ public class DataItemImpl implements DataItem {
     static final int OF_DATA = 3;
 
     private SubArray raw;
-    private byte[] oldRaw;
-    private Lock rlock;
-    private Lock wlock;
+    private SubArray data;              //Data 部分的视图，创建时算好，读取时不再分配
+    private byte[] oldRaw;              //修改前的旧数据，只读的数据项为null
+    private StampedLock lock;
+    private long writeStamp;            //写锁的戳，只由持有写锁的线程读写
+    private Thread writer;              //持有写锁的线程
     private DataManagerImpl dm;
     private long uid;
+    private short slot;                 //数据在页面中的槽号
     private Page pg;
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
+    public DataItemImpl(SubArray raw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
-        this.oldRaw = oldRaw;
+        this.data = new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
         this.pg = pg;
         this.uid = uid;
+        this.slot = (short) (uid & ((1L << 16) - 1));
         this.dm = dm;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        wlock = lock.writeLock();
-        rlock = lock.readLock();
+        this.lock = new StampedLock();
     }
 
+    //返回的视图被所有调用方共享，不能修改它的 start 和 end
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        return data;
     }
 
-    //用于事务回滚
+    /**
+     * 修改数据前调用，保存修改前的数据用于事务回滚
+     * 从before到after（或unBefore）之间持有页面锁，after在锁内把日志的LSN记到页面上，
+     * 写回页面时跳过LSN还没落盘的页面，修改在日志落盘之前不会被写到磁盘
+     */
     @Override
     public void before() {
-        wlock.lock();
+        writeLock();
+        pg.lock();
         pg.setDirty(true);
+        if(oldRaw == null){
+            oldRaw = new byte[raw.end - raw.start];
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
-        wlock.unlock();
+        pg.setDirty(true);
+        pg.unlock();
+        unlockWrite();
     }
 
+    //释放页面锁之后才等待日志落盘，等待刷盘期间其他线程可以使用这个页面
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid,this);
-        wlock.lock();
+        writeBack(0, raw.end - raw.start);
+        long lsn = dm.logDataItem(xid,this);
+        pg.setLsn(lsn);
+        pg.setDirty(true);
+        pg.unlock();
+        unlockWrite();
+        dm.flushLog(lsn);
+    }
+
+    /**
+     * 原地修改Data中从offset开始的一段字节，日志只记录这一段的新旧值
+     * 不需要 before/after，也不需要复制整个数据项作为旧数据
+     */
+    @Override
+    public void update(long xid, int offset, byte[] bytes) {
+        if(offset < 0 || offset + bytes.length > data.end - data.start){
+            throw new IndexOutOfBoundsException();
+        }
+        int pos = data.start + offset;
+        long lsn;
+        writeLock();
+        pg.lock();
+        try{
+            pg.setDirty(true);      //先标记为脏，页面的 recLSN 不晚于下面写的日志
+            byte[] old = Arrays.copyOfRange(raw.raw, pos, pos + bytes.length);
+            System.arraycopy(bytes, 0, raw.raw, pos, bytes.length);
+            writeBack(OF_DATA + offset, OF_DATA + offset + bytes.length);
+            lsn = dm.logDataItemDelta(xid, this, OF_DATA + offset, old, bytes);
+            pg.setLsn(lsn);
+            pg.setDirty(true);
+        }finally {
+            pg.unlock();
+            unlockWrite();
+        }
+        dm.flushLog(lsn);
+    }
+
+    /**
+     * 把副本中 [from, to) 这一段写回页面，调用时持有页面锁
+     * 页内整理会移动数据，每次按槽号重新查偏移；数据已被删除时不写
+     */
+    private void writeBack(int from, int to) {
+        int offset = PageX.getOffset(pg, slot);
+        if(offset != 0) {
+            pg.put(offset + from, raw.raw, raw.start + from, to - from);
+        }
     }
 
     @Override
@@ -74,22 +137,38 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public void lock() {
-        wlock.lock();
+        writeLock();
     }
 
     @Override
     public void unLock() {
-        wlock.unlock();
+        unlockWrite();
     }
 
     @Override
     public void rLock() {
-        rlock.lock();
+        lock.readLock();
     }
 
     @Override
     public void rUnLock() {
-        rlock.unlock();
+        if(!lock.tryUnlockRead()){
+            throw new IllegalMonitorStateException();
+        }
+    }
+
+    private void writeLock() {
+        writeStamp = lock.writeLock();
+        writer = Thread.currentThread();
+    }
+
+    //只有持有写锁的线程能解锁，戳不匹配时 unlockWrite 抛出 IllegalMonitorStateException
+    private void unlockWrite() {
+        if(writer != Thread.currentThread()){
+            throw new IllegalMonitorStateException();
+        }
+        writer = null;
+        lock.unlockWrite(writeStamp);
     }
 
     @Override
@@ -0,0 +1,139 @@
+package top.zwx.eazyDB.backend.dm.logger;
+
+import top.zwx.eazyDB.backend.utils.Panic;
+import top.zwx.eazyDB.backend.utils.Parser;
+import top.zwx.eazyDB.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 旧格式（第一版）的日志文件，只用于打开时转换成新格式
+ *
+ * 旧格式为：
+ * [XChecksum][Log1][Log2]...[LogN][BadTail]
+ * XChecksum是对所有后面日志计算的校验和，每条日志的格式为 [Size][Checksum][Data]
+ *
+ * 转换时先按旧格式找出有效的日志（校验和与 XChecksum 一致的最长前缀），
+ * 写入新格式（一个 StartLsn 为 0 的日志段）的临时文件并落盘，再用它原子地替换原文件。中途崩溃时原文件不变，下次打开重新转换
+ */
+class LegacyLog {
+    private static final int SEED = 13331;
+
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+
+    private static final String MIGRATE_SUFFIX = ".v2tmp";
+    private static final int MIGRATE_BATCH = 1024;          //转换时一次写入新文件的日志条数
+
+    private FileChannel fc;
+    private long fileSize;
+    private long position;
+
+    private LegacyLog(FileChannel fc, long fileSize) {
+        this.fc = fc;
+        this.fileSize = fileSize;
+    }
+
+    //把旧格式的日志文件 f 转换成新格式
+    static void migrate(File f) {
+        File tmp = new File(f.getPath() + MIGRATE_SUFFIX);
+        try{
+            Files.deleteIfExists(tmp.toPath());
+            try(RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                LegacyLog old = new LegacyLog(raf.getChannel(), raf.length());
+                long validEnd = old.validEnd();
+
+                LogSegment seg = LogSegment.create(tmp, 0);
+                long end = 0;
+                List<byte[]> batch = new ArrayList<>();
+                old.position = 4;
+                while(old.position < validEnd) {
+                    byte[] log = old.next();
+                    batch.add(Arrays.copyOfRange(log, OF_DATA, log.length));
+                    if(batch.size() >= MIGRATE_BATCH) {
+                        end = LoggerImpl.appendTo(seg, end, batch);
+                        batch.clear();
+                    }
+                }
+                if(!batch.isEmpty()) {
+                    end = LoggerImpl.appendTo(seg, end, batch);
+                }
+                seg.writeSynced(end);
+                seg.force();
+                seg.close();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    private static int calChecksum(int xCheck, byte[] log){
+        for(byte b : log){
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+
+    //找出校验和与 XChecksum 一致的最长前缀，之后的是崩溃时留下的bad tail
+    private long validEnd() throws IOException {
+        if(fileSize < 4){
+            Panic.panic(Error.BadLogFileException);
+        }
+        ByteBuffer raw = ByteBuffer.allocate(4);
+        fc.read(raw, 0);
+        int xChecksum = Parser.parseInt(raw.array());
+
+        position = 4;
+        int xCheck = 0;
+        long valid = xCheck == xChecksum ? position : -1;
+        while(true){
+            byte[] log = next();
+            if(log == null){
+                break;
+            }
+            xCheck = calChecksum(xCheck, log);
+            if(xCheck == xChecksum){
+                valid = position;
+            }
+        }
+        if(valid < 0){
+            Panic.panic(Error.BadLogFileException);
+        }
+        return valid;
+    }
+
+    //读取下一条完整的日志（包括 Size 和 Checksum）
+    private byte[] next() throws IOException {
+        if(position + OF_DATA >= fileSize){
+            return null;
+        }
+        ByteBuffer tmp = ByteBuffer.allocate(4);
+        fc.read(tmp, position);
+        int size = Parser.parseInt(tmp.array());
+        if(size < 0 || position + size + OF_DATA > fileSize){
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        fc.read(buf, position);
+
+        byte[] log = buf.array();
+        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
+        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        if(checkSum1 != checkSum2){
+            return null;
+        }
+        position += log.length;
+        return log;
+    }
+}
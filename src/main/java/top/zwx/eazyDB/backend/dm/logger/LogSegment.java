@@ -0,0 +1,216 @@
+package top.zwx.eazyDB.backend.dm.logger;
+
+import top.zwx.eazyDB.backend.utils.Panic;
+import top.zwx.eazyDB.backend.utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 一个日志段文件
+ *
+ * 格式为 [Header][Block0][Block1]...[BlockN]
+ * Header 为 [Magic 4][Version 4][BlockSize 4][Reserved 4][StartLsn 8][Synced 8]，
+ * StartLsn 是第一个块开头对应的 LSN，Synced 是已知落盘的位置（相对第一个块开头的偏移），打开时从这里开始检查日志尾部
+ */
+class LogSegment {
+    static final int MAGIC = 0x455A4C32;                        //"EZL2"
+    static final int VERSION = 2;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_BLOCK_SIZE = OF_VERSION + 4;
+    private static final int OF_START_LSN = OF_BLOCK_SIZE + 8;
+    private static final int OF_SYNCED = OF_START_LSN + 8;
+    static final int HEADER_SIZE = OF_SYNCED + 8;
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    private long startLsn;
+    private long synced;
+
+    private LogSegment(File file, RandomAccessFile raf, long startLsn, long synced) {
+        this.file = file;
+        this.raf = raf;
+        this.fc = raf.getChannel();
+        this.startLsn = startLsn;
+        this.synced = synced;
+    }
+
+    //新建日志段，文件已经存在时（回收的旧段）覆盖文件头，旧的内容留在后面，它们的 LSN 对不上，不会被当成日志
+    static LogSegment create(File f, long startLsn) {
+        LogSegment seg = null;
+        try{
+            seg = new LogSegment(f, new RandomAccessFile(f, "rw"), startLsn, 0);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        seg.writeHeader();
+        return seg;
+    }
+
+    //打开已有的日志段，文件头不完整时返回null
+    static LogSegment open(File f) {
+        try{
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+            if(raf.length() < HEADER_SIZE) {
+                raf.close();
+                return null;
+            }
+            raf.getChannel().read(buf, 0);
+            if(buf.getInt(OF_MAGIC) != MAGIC || buf.getInt(OF_VERSION) != VERSION
+                    || buf.getInt(OF_BLOCK_SIZE) != LoggerImpl.BLOCK_SIZE) {
+                raf.close();
+                return null;
+            }
+            return new LogSegment(f, raf, buf.getLong(OF_START_LSN), buf.getLong(OF_SYNCED));
+        }catch (IOException e){
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    //文件开头是否是第二版的文件头，旧格式的文件开头是 XChecksum
+    static boolean isCurrentFormat(FileChannel fc) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        try{
+            if(fc.size() < HEADER_SIZE) {
+                return false;
+            }
+            fc.read(buf, OF_MAGIC);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        return buf.getInt(0) == MAGIC;
+    }
+
+    //读取单个日志文件的 StartLsn
+    static long readStartLsn(File f) {
+        try(RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            raf.getChannel().read(buf, OF_START_LSN);
+            return buf.getLong(0);
+        }catch (IOException e){
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    private void writeHeader() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(OF_MAGIC, MAGIC);
+        buf.putInt(OF_VERSION, VERSION);
+        buf.putInt(OF_BLOCK_SIZE, LoggerImpl.BLOCK_SIZE);
+        buf.putLong(OF_START_LSN, startLsn);
+        buf.putLong(OF_SYNCED, synced);
+        try{
+            fc.write(buf, 0);
+            fc.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    //回收的段作为新段重新使用：先改写文件头并落盘，再改名，中途崩溃时留下的只是一个空闲段
+    void reuse(File f, long startLsn) {
+        this.startLsn = startLsn;
+        this.synced = 0;
+        writeHeader();
+        rename(f);
+    }
+
+    //end 之前的日志已经落盘，记进文件头，随下一次 force 落盘
+    void writeSynced(long end) {
+        try{
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(end)), OF_SYNCED);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        synced = end;
+    }
+
+    void rename(File f) {
+        if(!file.renameTo(f)) {
+            Panic.panic(new IOException("Cannot rename " + file + " to " + f));
+        }
+        file = f;
+    }
+
+    void write(ByteBuffer buf, long offset) {
+        long pos = HEADER_SIZE + offset;
+        try{
+            while(buf.hasRemaining()) {
+                pos += fc.write(buf, pos);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    void read(ByteBuffer buf, long pos) {
+        try{
+            fc.read(buf, pos);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    void force() {
+        try{
+            fc.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    //把日志截断到 offset
+    void truncate(long offset) {
+        try{
+            fc.truncate(HEADER_SIZE + offset);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    long size() {
+        try{
+            return fc.size();
+        }catch (IOException e){
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    long getStartLsn() {
+        return startLsn;
+    }
+
+    long getSynced() {
+        return synced;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void close() {
+        try{
+            fc.close();
+            raf.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    void delete() {
+        close();
+        if(!file.delete()) {
+            Panic.panic(new IOException("Cannot delete " + file));
+        }
+    }
+}
@@ -1,51 +1,73 @@
 package top.zwx.eazyDB.backend.dm.logger;
 
 import top.zwx.eazyDB.backend.utils.Panic;
-import top.zwx.eazyDB.backend.utils.Parser;
 import top.zwx.eazyDB.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 public interface Logger {
     void rewind();
+    void seek(long lsn);        //从lsn处的日志开始读
     void truncate(long x) throws Exception;
-    void log(byte[] data);
+    long log(byte[] data);      //返回时日志已经落盘，并发的调用合并成一次刷盘，返回日志的LSN
+    long append(byte[] data);   //只放进等待队列，不等待落盘，返回日志的LSN
+    void flush();               //保证已经写入的日志全部落盘
+    void flush(long lsn);       //等待lsn处的日志落盘
+    long getDurableLsn();       //LSN小于它的日志都已经落盘
     byte[] next();              //读取下一条日志的有效部分
+    long getLsn();              //next() 最近返回的日志的LSN
     void close();
 
+    long getStartLsn();         //保留的最早一段日志的起始LSN
+    long getEndLsn();           //之后写入的日志的LSN都不小于它
+    //记下最近一次检查点日志的LSN，恢复从这里开始
+    void setCheckpoint(long lsn);
+    long getCheckpoint();       //没有检查点时为-1
+    //删除恢复不再需要的、全部在lsn之前的日志段
+    void removeBefore(long lsn);
+
+    //组提交参数：一次最多写入 maxBatch 条日志，leader 最多等待 maxWait 微秒凑满一批
+    void setGroupCommit(int maxBatch, long maxWait);
+    long getLogCount();         //已经落盘的日志条数
+    long getFsyncCount();       //写日志时 force 的次数，除以 getLogCount() 即每条日志的平均刷盘次数
+
     public static Logger create(String path){
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    //segmentSize 为每个日志段的大小，创建后不能修改
+    public static Logger create(String path, long segmentSize){
+        File single = new File(path + LoggerImpl.LOG_SUFFIX);
+        File control = new File(path + LoggerImpl.LOG_SUFFIX + LoggerImpl.CONTROL_SUFFIX);
         try{
-            if(!f.createNewFile()){
+            if(single.exists() || !control.createNewFile()){
                 Panic.panic(Error.FileExistsException);
             }
         }catch (Exception e){
             Panic.panic(e);
         }
-        if(!f.canRead() || !f.canWrite()){
+        if(!control.canRead() || !control.canWrite()){
             Panic.panic(Error.FileCannotRWException);
         }
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        }catch (FileNotFoundException e){
-            Panic.panic(e);
+        return LoggerImpl.create(single.getPath(), control, segmentSize);
+    }
+
+    public static Logger open(String path){
+        File single = new File(path + LoggerImpl.LOG_SUFFIX);
+        File control = new File(path + LoggerImpl.LOG_SUFFIX + LoggerImpl.CONTROL_SUFFIX);
+        //只有一个日志文件的旧数据库，先把它变成第一个日志段
+        if(single.exists()){
+            if(!single.canRead() || !single.canWrite()){
+                Panic.panic(Error.FileCannotRWException);
+            }
+            LoggerImpl.adopt(single, control);
         }
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try{
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        if(!control.exists()){
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if(!control.canRead() || !control.canWrite()){
+            Panic.panic(Error.FileCannotRWException);
         }
-        return new LoggerImpl(raf, fc, 0);
+        return LoggerImpl.open(single.getPath(), control);
     }
 }
@@ -1,187 +1,728 @@
 package top.zwx.eazyDB.backend.dm.logger;
 
 import top.zwx.eazyDB.backend.utils.Panic;
-import top.zwx.eazyDB.backend.utils.Parser;
 import top.zwx.eazyDB.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-
-import com.google.common.primitives.Bytes;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
 
 /**
- * 日志文件读写
+ * 日志读写
+ *
+ * 日志分成多个日志段文件（LogSegment），文件名是 path.log.<StartLsn 的 16 位十六进制>，
+ * 当前段写满 segmentSize 后新的日志写进下一段，下一段的 StartLsn 就是上一段末尾的 LSN，日志不跨段
+ * 控制文件 path.log.ckpt 记录段大小和最近一次检查点日志的 LSN：
+ * [SegmentSize 8][Checkpoint 8][Checksum 4]
+ * 检查点之后，恢复用不到的段由 removeBefore() 删除，或者改名为空闲段留给之后的新段复用，省去创建、扩展文件的开销
  *
- * 日志文件标准格式为：
- * [XChecksum][Log1][Log2]...[LogN][BadTail]
- * XChecksum是一个四字节的整数，是对所有后面日志计算的校验和
- * log1~logN是正常日志，BadTail是数据库崩溃后还没来得及写的日志
+ * 日志段按 BLOCK_SIZE 分块，每条日志切成若干片段放进块中，片段不跨块：
+ * [Checksum 4][Length 2][Type 1][Lsn 8][Data]
+ * Checksum 是 Length 之后所有内容的 CRC32C，Type 表示片段是整条日志还是第一段、中间段、最后一段，
+ * Lsn 是这条日志的 LSN，即第一个片段在段中的偏移加上段的 StartLsn，单调递增
+ * 块末尾放不下片段头时用 0 填充，下一个片段从下一块开始
  *
- * 每条日志的格式为：
- * [Size][Checksum][Data]
- * Size是一个四字节的整数，用于标识Data的长度
- * Checksum是该条日志的校验和
+ * 组提交：
+ * log() 把日志放进共享的等待队列，入队时就确定了这条日志的 LSN，
+ * 没有线程在写时由当前线程作为 leader，取出队列中最多 maxBatch 条日志编码后一次写入，只 force 一次，
+ * 其余线程等到自己的日志落盘后返回。leader 写盘期间到达的日志由下一个 leader 一起写入
+ * maxWait 大于 0 时 leader 最多等待这么久，让一批日志攒得更满
+ *
+ * 写日志不改写段头，落盘位置每写过 SYNC_HINT_INTERVAL 字节才顺带记进段头的 Synced（不单独 force）。
+ * 打开时只需要从最后一段的 Synced 开始逐个校验片段，遇到第一个无效的片段就截断
+ * 换段时上一段先 force 再创建下一段，所以只有最后一段可能有写了一半的日志
  */
 public class LoggerImpl implements Logger {
-    private static final int SEED = 13331;
+    public static final int BLOCK_SIZE = 32 * 1024;
+    static final int HEADER_SIZE = LogSegment.HEADER_SIZE;
+
+    private static final int OF_CHECKSUM = 0;
+    private static final int OF_LENGTH = OF_CHECKSUM + 4;
+    private static final int OF_TYPE = OF_LENGTH + 2;
+    private static final int OF_LSN = OF_TYPE + 1;
+    private static final int OF_DATA = OF_LSN + 8;              //片段头的长度
 
-    private static final int OF_SIZE = 0;                       //size的偏移量从0开始
-    private static final int OF_CHECKSUM = OF_SIZE + 4;         //checksum的偏移量从size+4开始
-    private static final int OF_DATA = OF_CHECKSUM + 4;         //data偏移量从Checksum+4开始
+    private static final byte TYPE_FULL = 1;
+    private static final byte TYPE_FIRST = 2;
+    private static final byte TYPE_MIDDLE = 3;
+    private static final byte TYPE_LAST = 4;
+
+    private static final long SYNC_HINT_INTERVAL = 64L * BLOCK_SIZE;
+
+    // control: [SegmentSize 8][Checkpoint 8][Checksum 4]
+    private static final int OF_CTL_SEGMENT_SIZE = 0;
+    private static final int OF_CTL_CHECKPOINT = OF_CTL_SEGMENT_SIZE + 8;
+    private static final int OF_CTL_CHECKSUM = OF_CTL_CHECKPOINT + 8;
+    private static final int CONTROL_SIZE = OF_CTL_CHECKSUM + 4;
 
     public static final String LOG_SUFFIX = ".log";
+    public static final String CONTROL_SUFFIX = ".ckpt";
+    private static final String FREE_SUFFIX = ".free";
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;  //每个日志段16MB
+    private static final int MAX_FREE_SEGMENTS = 2;             //最多保留的空闲段个数
+    public static final int DEFAULT_MAX_BATCH = 256;            //一次组提交最多写入的日志条数
+    public static final long DEFAULT_MAX_WAIT = 0;              //leader 等待更多日志的最长时间，微秒
+
+    private String prefix;          //日志段文件名的前缀，path.log
+    private RandomAccessFile control;
+    private long segmentSize;
+    private long checkpoint;        //最近一次检查点日志的LSN，没有时为-1
+    private Lock lock;              //保护文件读写和段列表
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock lock;
+    private List<LogSegment> segments;  //按 StartLsn 排序，最后一段是当前段
+    private Deque<LogSegment> free;     //空闲段
+    private long end;               //当前段已经写入的末尾，相对第一个块开头的偏移
 
-    private long position;          //当前日志指针的位置
-    private long fileSize;          //初始化时记录，log操作不更新
-    private int xChecksum;         //校验和
+    private int readSeg;            //读日志的段
+    private long position;          //读日志的文件位置
+    private long fileSize;          //读的段开始读时的大小，log操作不更新
+    private long lastLsn;           //next() 最近返回的日志的 LSN
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum){
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    private Lock groupLock;         //保护等待队列
+    private Condition durable;      //有一批日志落盘
+    private Condition batchFull;    //等待队列攒满一批
+    private List<byte[]> pending;   //等待写入的日志
+    private long reservedStart;     //入队日志所在段的 StartLsn
+    private long reserved;          //所有入队日志编码后在段中的末尾，入队时据此确定 LSN
+    private long appended;          //进入过队列的日志条数
+    private long written;           //已经落盘的日志条数
+    private long durableLsn;        //已经落盘的日志的末尾，LSN 小于它的日志都已经落盘
+    private boolean writing;        //有 leader 正在写盘
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;
+    private volatile long maxWait = DEFAULT_MAX_WAIT;
+
+    private AtomicLong fsyncCount;
+
+    private LoggerImpl(String prefix, RandomAccessFile control){
+        this.prefix = prefix;
+        this.control = control;
+        this.checkpoint = -1;
         lock = new ReentrantLock();
+        segments = new ArrayList<>();
+        free = new ArrayDeque<>();
+        groupLock = new ReentrantLock();
+        durable = groupLock.newCondition();
+        batchFull = groupLock.newCondition();
+        pending = new ArrayList<>();
+        fsyncCount = new AtomicLong();
     }
 
-    private int calChecksum(int xCheck, byte[] log){
-        for(byte b : log){
-            xCheck = xCheck * SEED + b;
+    //新建日志：写入控制文件和第一个日志段
+    static LoggerImpl create(String prefix, File controlFile, long segmentSize) {
+        LoggerImpl lg = null;
+        try{
+            lg = new LoggerImpl(prefix, new RandomAccessFile(controlFile, "rw"));
+        }catch (IOException e){
+            Panic.panic(e);
         }
-        return xCheck;
+        lg.segmentSize = segmentSize;
+        lg.writeControl();
+        lg.segments.add(LogSegment.create(lg.segmentFile(0), 0));
+        lg.rewind();
+        return lg;
     }
 
-    /**
-     * 不断从文件中读取下一条日志，将其中的data解析出来
-     *
-     * 检查当前文件指针是否可以读取完整的日志条目。
-     * 读取日志条目的 Size 字段，计算数据的长度。
-     * 判断当前日志条目是否完整（即 Size + Checksum + Data 是否超出文件的大小）。
-     * 读取整个日志条目。
-     * 校验 Data 部分的校验和，确保数据的完整性。
-     * 更新文件指针，指向下一个日志条目。
-     * 返回有效的日志数据。
-     * @return
-     */
-    private byte[] internNext(){
-        //确保日志还有data的空间
-        if(position + OF_DATA >= fileSize){
-            return null;
-        }
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    //打开已有的日志：读入控制文件，找出所有日志段，从最后一段的落盘位置开始检查、移除崩溃时留下的bad tail
+    static LoggerImpl open(String prefix, File controlFile) {
+        LoggerImpl lg = null;
         try{
-            fc.position(position);
-            fc.read(tmp);
+            lg = new LoggerImpl(prefix, new RandomAccessFile(controlFile, "rw"));
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        lg.readControl();
+        lg.loadSegments();
+        lg.checkAndRemoveTail();
+        return lg;
+    }
+
+    //把单个文件的日志（旧格式先转换）改名为第一个日志段，控制文件先于改名写好，中途崩溃时下次打开重新改名
+    static void adopt(File single, File controlFile) {
+        boolean current = false;
+        try(RandomAccessFile raf = new RandomAccessFile(single, "r")) {
+            current = LogSegment.isCurrentFormat(raf.getChannel());
         }catch (IOException e){
             Panic.panic(e);
         }
-        int size = Parser.parseInt(tmp.array());
-        //确保整条日志的大小是否超出文件大小
-        if(position + size + OF_DATA > fileSize){
-            return null;
+        if(!current) {
+            LegacyLog.migrate(single);
+        }
+        long startLsn = LogSegment.readStartLsn(single);
+        try(RandomAccessFile ctl = new RandomAccessFile(controlFile, "rw")) {
+            LoggerImpl lg = new LoggerImpl(single.getPath(), ctl);
+            lg.segmentSize = DEFAULT_SEGMENT_SIZE;
+            lg.writeControl();
+            if(!single.renameTo(lg.segmentFile(startLsn))) {
+                Panic.panic(new IOException("Cannot rename " + single));
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    private File segmentFile(long startLsn) {
+        return new File(String.format("%s.%016x", prefix, startLsn));
+    }
+
+    private File freeFile(int i) {
+        return new File(prefix + FREE_SUFFIX + i);
+    }
+
+    private void writeControl() {
+        ByteBuffer buf = ByteBuffer.allocate(CONTROL_SIZE);
+        buf.putLong(OF_CTL_SEGMENT_SIZE, segmentSize);
+        buf.putLong(OF_CTL_CHECKPOINT, checkpoint);
+        buf.putInt(OF_CTL_CHECKSUM, calChecksum(buf.array(), 0, OF_CTL_CHECKSUM));
+        try{
+            control.getChannel().write(buf, 0);
+            control.getChannel().force(false);
+        }catch (IOException e){
+            Panic.panic(e);
         }
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    }
+
+    private void readControl() {
+        ByteBuffer buf = ByteBuffer.allocate(CONTROL_SIZE);
         try{
-            fc.position(position);
-            fc.read(buf);
+            if(control.length() < CONTROL_SIZE) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            control.getChannel().read(buf, 0);
         }catch (IOException e){
             Panic.panic(e);
         }
+        if(calChecksum(buf.array(), 0, OF_CTL_CHECKSUM) != buf.getInt(OF_CTL_CHECKSUM)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        segmentSize = buf.getLong(OF_CTL_SEGMENT_SIZE);
+        checkpoint = buf.getLong(OF_CTL_CHECKPOINT);
+    }
 
-        byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log,OF_DATA, log.length));    //计算日志的校验和
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM, OF_DATA));          //拿到普通日志中的checksum
-        if(checkSum1 != checkSum2){
-            return null;
+    //按文件名找出日志段和空闲段；最后一段的文件头可能在创建时没写完，这样的段还没有日志，直接删除
+    private void loadSegments() {
+        File base = new File(prefix).getAbsoluteFile();
+        String name = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles();
+        List<File> segFiles = new ArrayList<>();
+        for(File f : files == null ? new File[0] : files) {
+            String rest = f.getName().startsWith(name) ? f.getName().substring(name.length()) : "";
+            if(rest.matches("[0-9a-f]{16}")) {
+                segFiles.add(f);
+            }else if(rest.startsWith(FREE_SUFFIX.substring(1))) {
+                LogSegment seg = LogSegment.open(f);
+                if(seg == null) {
+                    f.delete();
+                }else{
+                    free.add(seg);
+                }
+            }
+        }
+        segFiles.sort(Comparator.comparing(File::getName));
+        for(int i = 0; i < segFiles.size(); i++) {
+            File f = segFiles.get(i);
+            LogSegment seg = LogSegment.open(f);
+            if(seg == null && i == segFiles.size() - 1 && i > 0) {
+                f.delete();
+                continue;
+            }
+            if(seg == null || !f.getName().equals(segmentFile(seg.getStartLsn()).getName())) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            segments.add(seg);
+        }
+        if(segments.isEmpty()) {
+            Panic.panic(Error.BadLogFileException);
         }
-        //将指针指向下一个日志起始位置
-        position += log.length;
-        //返回整个日志
-        return log;
     }
 
-    //检查并移除bad tail
+    //从最后一段的落盘位置开始检查并移除bad tail，之前的日志不再重新校验
     private void checkAndRemoveTail(){
-        rewind();       //将文件指针移动到日志文件的起始位置（跳过文件头部的 xChecksum 部分）
+        LogSegment last = segments.get(segments.size() - 1);
+        long synced = last.getSynced();
+        //文件比记录的落盘位置还短，说明文件被截断过，只能从头检查
+        if(synced < 0 || HEADER_SIZE + synced > last.size()) {
+            synced = 0;
+        }
+        readSeg = segments.size() - 1;
+        position = HEADER_SIZE + synced;
+        fileSize = last.size();
+        while(readSegment() != null) {
+        }
+        end = position - HEADER_SIZE;
+        last.truncate(end);
+        reservedStart = last.getStartLsn();
+        reserved = end;
+        durableLsn = reservedStart + reserved;
+        rewind();
+    }
+
+    private static int calChecksum(byte[] frag, int off, int len){
+        CRC32C crc = new CRC32C();
+        crc.update(frag, off, len);
+        return (int) crc.getValue();
+    }
 
-        int xCheck = 0;
-        while(true){
-            byte[] log = internNext();
-            if(log == null){
+    //块末尾放不下片段头时，下一个片段从下一块开始
+    private static long align(long offset) {
+        int left = BLOCK_SIZE - (int) (offset % BLOCK_SIZE);
+        return left < OF_DATA ? offset + left : offset;
+    }
+
+    //从 offset 开始放入一条长度为 length 的日志，返回日志的末尾
+    private static long advance(long offset, int length) {
+        offset = align(offset);
+        int left = BLOCK_SIZE - (int) (offset % BLOCK_SIZE);
+        while(length > left - OF_DATA) {
+            length -= left - OF_DATA;
+            offset = align(offset + left);
+            left = BLOCK_SIZE;
+        }
+        return offset + OF_DATA + length;
+    }
+
+    //把日志切成片段写入 buf，buf 的当前位置对应段中的 offset，返回日志的末尾
+    private static long encode(ByteBuffer buf, long startLsn, long offset, byte[] data) {
+        long aligned = align(offset);
+        buf.position(buf.position() + (int) (aligned - offset));
+        offset = aligned;
+        long lsn = startLsn + offset;
+        int off = 0;
+        //块中正好剩下一个片段头时写出的是长度为0的首片段，后面的片段不能再按 off 判断是不是首片段
+        boolean first = true;
+        while(true) {
+            int left = BLOCK_SIZE - (int) (offset % BLOCK_SIZE);
+            if(left < OF_DATA) {
+                buf.position(buf.position() + left);
+                offset += left;
+                continue;
+            }
+            int len = Math.min(data.length - off, left - OF_DATA);
+            boolean last = off + len == data.length;
+            byte type = first && last ? TYPE_FULL : first ? TYPE_FIRST : last ? TYPE_LAST : TYPE_MIDDLE;
+            int start = buf.position();
+            buf.position(start + OF_LENGTH);
+            buf.putShort((short) len);
+            buf.put(type);
+            buf.putLong(lsn);
+            buf.put(data, off, len);
+            buf.putInt(start + OF_CHECKSUM, calChecksum(buf.array(), start + OF_LENGTH, OF_DATA - OF_LENGTH + len));
+            offset += OF_DATA + len;
+            off += len;
+            first = false;
+            if(last) {
+                return offset;
+            }
+        }
+    }
+
+    //把 datas 编码后写到 seg 的 offset 处，返回写入后的末尾，不 force
+    static long appendTo(LogSegment seg, long offset, List<byte[]> datas) {
+        long newEnd = offset;
+        for(byte[] data : datas) {
+            newEnd = advance(newEnd, data.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) (newEnd - offset));
+        long cur = offset;
+        for(byte[] data : datas) {
+            cur = encode(buf, seg.getStartLsn(), cur, data);
+        }
+        buf.position(0);
+        seg.write(buf, offset);
+        return newEnd;
+    }
+
+    //读取下一条日志，当前段读完后接着读下一段，下一段的 StartLsn 必须和当前段的末尾接上
+    private byte[] internNext(){
+        while(true) {
+            byte[] log = readSegment();
+            if(log != null || readSeg + 1 >= segments.size()) {
+                return log;
+            }
+            LogSegment next = segments.get(readSeg + 1);
+            if(next.getStartLsn() != segments.get(readSeg).getStartLsn() + position - HEADER_SIZE) {
+                return null;
+            }
+            readSeg++;
+            position = HEADER_SIZE;
+            fileSize = next.size();
+        }
+    }
+
+    /**
+     * 从当前段读取下一条日志，把各个片段的data拼起来
+     * 片段头越界、校验和不对、类型或 LSN 接不上时认为这一段到此结束，读指针停在这条日志的开头
+     */
+    private byte[] readSegment(){
+        LogSegment seg = segments.get(readSeg);
+        long start = position;
+        long lsn = -1;
+        List<byte[]> parts = new ArrayList<>();
+        int total = 0;
+        while(true) {
+            int left = BLOCK_SIZE - (int) ((position - HEADER_SIZE) % BLOCK_SIZE);
+            if(left < OF_DATA) {
+                position += left;
+                continue;
+            }
+            if(position + OF_DATA > fileSize) {
                 break;
             }
-            xCheck = calChecksum(xCheck, log);
+            ByteBuffer head = ByteBuffer.allocate(OF_DATA);
+            seg.read(head, position);
+            int len = head.getShort(OF_LENGTH) & 0xFFFF;
+            if(len > left - OF_DATA || position + OF_DATA + len > fileSize) {
+                break;
+            }
+            ByteBuffer frag = ByteBuffer.allocate(OF_DATA + len);
+            seg.read(frag, position);
+            byte[] raw = frag.array();
+            if(calChecksum(raw, OF_LENGTH, raw.length - OF_LENGTH) != frag.getInt(OF_CHECKSUM)) {
+                break;
+            }
+            byte type = frag.get(OF_TYPE);
+            long fragLsn = frag.getLong(OF_LSN);
+            boolean first = lsn < 0;
+            if(first && (type != TYPE_FULL && type != TYPE_FIRST || fragLsn != seg.getStartLsn() + position - HEADER_SIZE)) {
+                break;
+            }
+            if(!first && (type != TYPE_MIDDLE && type != TYPE_LAST || fragLsn != lsn)) {
+                break;
+            }
+            lsn = fragLsn;
+            byte[] part = new byte[len];
+            System.arraycopy(raw, OF_DATA, part, 0, len);
+            parts.add(part);
+            total += len;
+            position += OF_DATA + len;
+            if(type == TYPE_FULL || type == TYPE_LAST) {
+                byte[] log = new byte[total];
+                int off = 0;
+                for(byte[] p : parts) {
+                    System.arraycopy(p, 0, log, off, p.length);
+                    off += p.length;
+                }
+                lastLsn = lsn;
+                return log;
+            }
         }
-        if(xCheck != xChecksum){
-            Panic.panic(Error.BadLogFileException);
+        position = start;
+        return null;
+    }
+
+    /**
+     * 写日志时把数据放进等待队列，由 leader 把一批日志编码写入文件后统一刷盘
+     * 返回时这条日志已经落盘，返回值为这条日志的 LSN
+     * @param data
+     */
+    @Override
+    public long log(byte[] data) {
+        groupLock.lock();
+        try{
+            long lsn = enqueue(data);
+            long seq = appended;
+            awaitWritten(() -> written >= seq);
+            return lsn;
+        }finally {
+            groupLock.unlock();
         }
+    }
 
+    //只放进等待队列，不等待落盘，返回日志的 LSN
+    @Override
+    public long append(byte[] data) {
+        groupLock.lock();
         try{
-            truncate(position);
-        }catch (Exception e){
-            Panic.panic(e);
+            return enqueue(data);
+        }finally {
+            groupLock.unlock();
+        }
+    }
+
+    //调用时持有 groupLock，按编码后的长度预留位置，确定日志的 LSN
+    private long enqueue(byte[] data) {
+        long next = advance(reserved, data.length);
+        //和 writeBatch() 换段的条件一致
+        if(next > segmentSize && reserved > 0) {
+            reservedStart += reserved;
+            reserved = 0;
+            next = advance(0, data.length);
+        }
+        long lsn = reservedStart + align(reserved);
+        reserved = next;
+        pending.add(data);
+        appended++;
+        if(pending.size() >= maxBatch) {
+            batchFull.signal();
+        }
+        return lsn;
+    }
+
+    //等待 done 成立，没有 leader 时自己作为 leader 写一批，调用时持有 groupLock
+    private void awaitWritten(BooleanSupplier done) {
+        while(!done.getAsBoolean()) {
+            if(writing) {
+                durable.awaitUninterruptibly();
+                continue;
+            }
+            writing = true;
+            try{
+                lead();
+            }finally {
+                writing = false;
+                durable.signalAll();
+            }
+        }
+    }
+
+    //作为 leader 取出一批日志写盘，调用时持有 groupLock，写盘期间释放，其他线程可以继续入队
+    private void lead() {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxWait);
+        while(pending.size() < maxBatch) {
+            long left = deadline - System.nanoTime();
+            if(left <= 0) {
+                break;
+            }
+            try{
+                batchFull.awaitNanos(left);
+            }catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
+        int n = Math.min(pending.size(), maxBatch);
+        List<byte[]> batch = new ArrayList<>(pending.subList(0, n));
+        pending.subList(0, n).clear();
+        groupLock.unlock();
+        long end;
         try{
-            //重置文件指针到有效日志的结束位置，防止后续写操作发生错误
-            file.seek(position);
-        }catch (IOException e){
-            Panic.panic(e);
+            end = writeBatch(batch);
+        }finally {
+            groupLock.lock();
         }
-        rewind();
+        written += n;
+        durableLsn = end;
     }
 
     /**
-     * 向日志文件写入日志时，也是首先将数据包裹成日志格式，写入文件后，再更新文件的校验和，更新校验和时，会刷新缓冲区，保证内容写入磁盘。
-     * @param data
+     * 把一批日志编码后追加到当前段，当前段放不下时写完前面的部分换到下一段
+     * 每段写完 force 一次，没有换段时整批只 force 一次，返回落盘之后日志的末尾
      */
+    private long writeBatch(List<byte[]> batch) {
+        lock.lock();
+        try{
+            int i = 0;
+            while(i < batch.size()) {
+                long newEnd = end;
+                int j = i;
+                while(j < batch.size()) {
+                    long next = advance(newEnd, batch.get(j).length);
+                    if(next > segmentSize && newEnd > 0) {
+                        break;
+                    }
+                    newEnd = next;
+                    j++;
+                }
+                if(j > i) {
+                    LogSegment seg = current();
+                    end = appendTo(seg, end, batch.subList(i, j));
+                    seg.force();
+                    fsyncCount.incrementAndGet();
+                    if(end - seg.getSynced() >= SYNC_HINT_INTERVAL) {
+                        seg.writeSynced(end);
+                    }
+                    i = j;
+                }
+                if(i < batch.size()) {
+                    roll();
+                }
+            }
+            return current().getStartLsn() + end;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    private LogSegment current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    //当前段已经 force 过，创建下一段，有空闲段时复用
+    private void roll() {
+        LogSegment cur = current();
+        cur.writeSynced(end);
+        long startLsn = cur.getStartLsn() + end;
+        LogSegment seg = free.pollFirst();
+        if(seg != null) {
+            seg.reuse(segmentFile(startLsn), startLsn);
+        }else{
+            seg = LogSegment.create(segmentFile(startLsn), startLsn);
+        }
+        segments.add(seg);
+        end = 0;
+    }
+
+    //等待调用时已经放进队列的日志全部落盘
+    @Override
+    public void flush() {
+        groupLock.lock();
+        try{
+            long seq = appended;
+            awaitWritten(() -> written >= seq);
+        }finally {
+            groupLock.unlock();
+        }
+    }
+
+    //等待 lsn 处的日志落盘，lsn 小于0时直接返回
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+    public void flush(long lsn) {
+        groupLock.lock();
+        try{
+            awaitWritten(() -> durableLsn > lsn);
+        }finally {
+            groupLock.unlock();
+        }
+    }
+
+    @Override
+    public long getDurableLsn() {
+        groupLock.lock();
+        try{
+            return durableLsn;
+        }finally {
+            groupLock.unlock();
+        }
+    }
+
+    @Override
+    public long getEndLsn() {
+        groupLock.lock();
+        try{
+            return reservedStart + reserved;
+        }finally {
+            groupLock.unlock();
+        }
+    }
+
+    @Override
+    public long getStartLsn() {
         lock.lock();
         try{
-            fc.position(fc.size());
-            fc.write(buf);
-        }catch (IOException e){
-            Panic.panic(e);
+            return segments.get(0).getStartLsn();
         }finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
-    //更新日志文件的全局校验和
-    private void updateXChecksum(byte[] log){
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void setCheckpoint(long lsn) {
+        lock.lock();
         try{
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));  //将字节数组包装为ByteBuffer对象
-            fc.force(false);
-        }catch (IOException e){
-            Panic.panic(e);
+            checkpoint = lsn;
+            writeControl();
+        }finally {
+            lock.unlock();
         }
     }
 
-    //将一条日志数据（data）封装成一个完整的日志条目
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0,data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size,checksum,data);
+    @Override
+    public long getCheckpoint() {
+        return checkpoint;
     }
 
+    /**
+     * 删除所有日志都在 lsn 之前的段，当前段不删除
+     * 空闲段不足 MAX_FREE_SEGMENTS 个时改名为空闲段，留给之后的新段复用
+     */
     @Override
-    public void truncate(long x) throws IOException {
+    public void removeBefore(long lsn) {
         lock.lock();
         try{
-            //调用 truncate() 方法，将文件截断到指定长度（x），文件中超出该长度的部分将被删除
-            fc.truncate(x);
+            while(segments.size() > 1 && segments.get(1).getStartLsn() <= lsn) {
+                LogSegment seg = segments.remove(0);
+                if(readSeg > 0) {
+                    readSeg--;
+                }
+                if(free.size() < MAX_FREE_SEGMENTS) {
+                    seg.rename(freeFile(freeIndex()));
+                    free.add(seg);
+                }else{
+                    seg.delete();
+                }
+            }
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    //没有被空闲段占用的文件编号
+    private int freeIndex() {
+        for(int i = 0; ; i++) {
+            File f = freeFile(i);
+            boolean used = false;
+            for(LogSegment seg : free) {
+                used |= seg.getFile().getName().equals(f.getName());
+            }
+            if(!used) {
+                return i;
+            }
+        }
+    }
+
+    @Override
+    public void setGroupCommit(int maxBatch, long maxWait) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWait = Math.max(0, maxWait);
+    }
+
+    @Override
+    public long getLogCount() {
+        groupLock.lock();
+        try{
+            return written;
+        }finally {
+            groupLock.unlock();
+        }
+    }
+
+    @Override
+    public long getFsyncCount() {
+        return fsyncCount.get();
+    }
+
+    //把日志截断到 x，x 之后的段全部删除
+    @Override
+    public void truncate(long x) {
+        lock.lock();
+        try{
+            while(segments.size() > 1 && current().getStartLsn() > x) {
+                segments.remove(segments.size() - 1).delete();
+            }
+            LogSegment seg = current();
+            end = Math.max(0, x - seg.getStartLsn());
+            seg.truncate(end);
+            groupLock.lock();
+            try{
+                reservedStart = seg.getStartLsn();
+                reserved = end;
+                durableLsn = reservedStart + reserved;
+            }finally {
+                groupLock.unlock();
+            }
         }finally {
             lock.unlock();
         }
@@ -189,30 +730,73 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void rewind() {
-        position = 4;
+        lock.lock();
+        try{
+            readSeg = 0;
+            position = HEADER_SIZE;
+            fileSize = segments.get(0).size();
+        }finally {
+            lock.unlock();
+        }
     }
 
+    //从 lsn 开始读，lsn 必须是一条日志的开头
     @Override
-    public byte[] next() {
+    public void seek(long lsn) {
         lock.lock();
         try{
-            byte[] log = internNext();
-            if(log == null){
-                return null;
+            int i = segments.size() - 1;
+            while(i > 0 && segments.get(i).getStartLsn() > lsn) {
+                i--;
+            }
+            LogSegment seg = segments.get(i);
+            if(lsn < seg.getStartLsn()) {
+                Panic.panic(Error.BadLogFileException);
             }
-            return Arrays.copyOfRange(log,OF_DATA,log.length);
+            readSeg = i;
+            position = HEADER_SIZE + lsn - seg.getStartLsn();
+            fileSize = seg.size();
         }finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public byte[] next() {
+        lock.lock();
+        try{
+            return internNext();
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getLsn() {
+        return lastLsn;
+    }
+
+    //关闭前记下落盘位置，下次打开时不用再检查这些日志
     @Override
     public void close() {
+        lock.lock();
         try{
-            fc.close();
-            file.close();
+            LogSegment cur = current();
+            if(cur.getSynced() != end) {
+                cur.writeSynced(end);
+                cur.force();
+            }
+            for(LogSegment seg : segments) {
+                seg.close();
+            }
+            for(LogSegment seg : free) {
+                seg.close();
+            }
+            control.close();
         }catch (IOException e){
             Panic.panic(e);
+        }finally {
+            lock.unlock();
         }
     }
 }
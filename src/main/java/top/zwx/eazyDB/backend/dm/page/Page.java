@@ -1,11 +1,18 @@
 package top.zwx.eazyDB.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public interface Page {
     void lock();
+    boolean tryLock();
     void unlock();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+    ByteBuffer getBuffer();     //页面数据的ByteBuffer视图，是堆外的页帧，只能使用带下标的绝对读写
+    void get(int pos, byte[] dst, int off, int len);    //把页面pos处的len个字节拷贝到dst的off处
+    void put(int pos, byte[] src, int off, int len);    //把src的off处的len个字节拷贝到页面pos处
+    void setLsn(long lsn);      //在页面锁内记下修改这个页面的日志的LSN
+    long getLsn();              //最近一次先改页面后写日志的修改的LSN，没有时为-1，这条日志落盘之前页面不能写回
 }
@@ -2,26 +2,31 @@ package top.zwx.eazyDB.backend.dm.page;
 
 import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PageImpl implements Page{
     private int pageNumber;                 //页面的页号
-    private byte[] data;                    //这个页实际包含的字节数据
+    private ByteBuffer buffer;              //这个页实际包含的字节数据，是页帧池中的堆外缓冲区
     /**
      * dirty 标志着这个页面是否是脏页面，在缓存驱逐的时候，脏页面需要被写回磁盘
      * 如果在驱逐脏页面时不将其写回磁盘，当缓存被覆盖或者系统发生故障时，这些修改将丢失，导致数据库的状态不一致或数据丢失
      */
-    private boolean dirty;
+    private AtomicBoolean dirty;
     private Lock lock;
+    private volatile long lsn;              //最近一次先改页面后写日志的修改的LSN，只在内存中
 
     private PageCache pc;                   //用来方便在拿到 Page 的引用时可以快速对这个页面的缓存进行释放操作。
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pc) {
+    public PageImpl(int pageNumber, ByteBuffer buffer, PageCache pc) {
         this.pageNumber = pageNumber;
-        this.data = data;
+        this.buffer = buffer;
         this.pc = pc;
+        dirty = new AtomicBoolean(false);
         lock = new ReentrantLock();
+        lsn = -1;
     }
 
     @Override
@@ -29,6 +34,11 @@ public class PageImpl implements Page{
         lock.lock();
     }
 
+    @Override
+    public boolean tryLock() {
+        return lock.tryLock();
+    }
+
     @Override
     public void unlock() {
         lock.unlock();
@@ -40,13 +50,18 @@ public class PageImpl implements Page{
     }
 
     @Override
+    //修改页面之后要再调用一次setDirty(true)，由干净变脏时通知缓存
     public void setDirty(boolean dirty) {
-        this.dirty = dirty;
+        if(!dirty) {
+            this.dirty.set(false);
+        }else if(!this.dirty.getAndSet(true)) {
+            pc.markDirty(this);
+        }
     }
 
     @Override
     public boolean isDirty() {
-        return dirty;
+        return dirty.get();
     }
 
     @Override
@@ -55,7 +70,32 @@ public class PageImpl implements Page{
     }
 
     @Override
-    public byte[] getData() {
-        return data;
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    //在副本上设置位置，不改变共享视图的 position，多个线程可以同时拷贝
+    @Override
+    public void get(int pos, byte[] dst, int off, int len) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos);
+        dup.get(dst, off, len);
+    }
+
+    @Override
+    public void put(int pos, byte[] src, int off, int len) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(pos);
+        dup.put(src, off, len);
+    }
+
+    @Override
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    @Override
+    public long getLsn() {
+        return lsn;
     }
 }
@@ -1,9 +1,9 @@
 package top.zwx.eazyDB.backend.dm.page;
 
-import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
 import top.zwx.eazyDB.backend.utils.RandomUtil;
 
 import javax.xml.crypto.Data;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -11,18 +11,30 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时给100~107字节处填入一串随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据是否正常关闭
+ * PageCount
+ * 116~119字节处记录数据库文件已经分配出去的页数，文件按区段预先扩展，不能再用文件长度推算页数
+ * PageSize
+ * 120~123字节处记录页面大小，打开文件时先读出它才能确定每一页的位置
+ * Flags
+ * 124~127字节处记录数据库文件的特性，FLAG_FSM 表示文件中有空闲空间表页，第1~2位记录创建时选择的读写方式
  */
 public class PageOne {
     private static final int LEN_VC = 8;
     private static final int OF_VC = 100;
+    private static final int OF_PAGE_NUMBER = OF_VC + 2*LEN_VC;     //页数，占4字节
+    private static final int OF_PAGE_SIZE = OF_PAGE_NUMBER + 4;     //页面大小，占4字节
+    private static final int OF_FLAGS = OF_PAGE_SIZE + 4;           //特性标志，占4字节
+    private static final int FLAG_FSM = 1;                          //文件中有空闲空间表页
+    private static final int MODE_SHIFT = 1;
+    private static final int MODE_MASK = 3 << MODE_SHIFT;          //读写方式，PageCache.MODE_*
 
     /**
      * 启动时设置初始字节
      * @param pg
      */
     public static void setVcOpen(Page pg){
+        pg.put(OF_VC, RandomUtil.randomBytes(LEN_VC), 0, LEN_VC);
         pg.setDirty(true);
-        setVcOpen(pg.getData());
     }
 
     private static void setVcOpen(byte[] raw){
@@ -36,27 +48,76 @@ public class PageOne {
      * @param pg
      */
     public static void setVcClose(Page pg){
+        byte[] vc = new byte[LEN_VC];
+        pg.get(OF_VC, vc, 0, LEN_VC);
+        pg.put(OF_VC+LEN_VC, vc, 0, LEN_VC);
         pg.setDirty(true);
-        setVcClose(pg.getData());
-    }
-    private static void setVcClose(byte[] raw){
-        System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
     }
 
     /**
      * 校验字节
      */
     public static boolean checkVc(Page pg){
-        return checkVc(pg.getData());
+        byte[] raw = new byte[2*LEN_VC];
+        pg.get(OF_VC, raw, 0, raw.length);
+        return Arrays.equals(Arrays.copyOfRange(raw, 0, LEN_VC), Arrays.copyOfRange(raw, LEN_VC, 2*LEN_VC));
+    }
+
+    /**
+     * 记录数据库文件的页数，由PageCache在扩展文件、检查点、关闭和截断时维护
+     */
+    public static void setPageNumber(Page pg, int pageNumber){
+        pg.getBuffer().putInt(OF_PAGE_NUMBER, pageNumber);
+        pg.setDirty(true);
+    }
+
+    //从第一页的原始数据中读取页数，旧格式的文件没有记录，读出来为0
+    public static int getPageNumber(byte[] raw){
+        return ByteBuffer.wrap(raw).getInt(OF_PAGE_NUMBER);
+    }
+
+    public static int getPageNumber(Page pg){
+        return pg.getBuffer().getInt(OF_PAGE_NUMBER);
+    }
+
+    public static void setPageSize(Page pg, int pageSize){
+        pg.getBuffer().putInt(OF_PAGE_SIZE, pageSize);
+        pg.setDirty(true);
+    }
+
+    //从第一页的原始数据中读取页面大小，旧格式的文件没有记录，读出来为0
+    public static int getPageSize(byte[] raw){
+        return ByteBuffer.wrap(raw).getInt(OF_PAGE_SIZE);
+    }
+
+    public static int getPageSize(Page pg){
+        return pg.getBuffer().getInt(OF_PAGE_SIZE);
+    }
+
+    public static void setStorageMode(Page pg, int mode){
+        ByteBuffer buf = pg.getBuffer();
+        buf.putInt(OF_FLAGS, (buf.getInt(OF_FLAGS) & ~MODE_MASK) | (mode << MODE_SHIFT));
+        pg.setDirty(true);
+    }
+
+    //从第一页的原始数据中读取读写方式，旧格式的文件没有记录，读出来为0，即 MODE_FILE
+    public static int getStorageMode(byte[] raw){
+        return (ByteBuffer.wrap(raw).getInt(OF_FLAGS) & MODE_MASK) >>> MODE_SHIFT;
+    }
+
+    public static int getStorageMode(Page pg){
+        return (pg.getBuffer().getInt(OF_FLAGS) & MODE_MASK) >>> MODE_SHIFT;
     }
 
-    private static boolean checkVc(byte[] raw){
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, LEN_VC + OF_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, 2*LEN_VC+OF_VC));
+    //文件中是否有空闲空间表页，旧格式的文件没有，打开时需要扫描所有数据页
+    public static boolean hasFreeSpaceMap(Page pg){
+        return (pg.getBuffer().getInt(OF_FLAGS) & FLAG_FSM) != 0;
     }
 
-    public static byte[] InitRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize){
+        byte[] raw = new byte[pageSize];
         setVcOpen(raw);
+        ByteBuffer.wrap(raw).putInt(OF_FLAGS, FLAG_FSM);
         return raw;
     }
 
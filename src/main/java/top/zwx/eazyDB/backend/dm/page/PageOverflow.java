@@ -0,0 +1,49 @@
+package top.zwx.eazyDB.backend.dm.page;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 溢出页，存放超过一页的大数据，多个溢出页通过 Next 串成一条链
+ * [Marker][Reserved][Next][Length][Data]
+ * 2字节、4字节、4字节、4字节
+ *
+ * Marker 固定为0xFFFF，Reserved 为0，按 PageX 的页头解读时槽数为65535、FreeEnd 为0，
+ * 空闲空间为0，扫描数据页或修复空闲空间表时溢出页不会被当作可插入的数据页
+ * Next 为链中下一页的页号，最后一页为0；Length 为本页存放的数据长度
+ */
+public class PageOverflow {
+    private static final int OF_MARKER = 0;
+    private static final int OF_NEXT = OF_MARKER + 6;
+    private static final int OF_LENGTH = OF_NEXT + 4;
+    public static final int OF_DATA = OF_LENGTH + 4;
+
+    private static final short MARKER = (short) 0xFFFF;
+
+    //一个溢出页最多存放的数据
+    public static int capacity(int pageSize){
+        return pageSize - OF_DATA;
+    }
+
+    //用data中从offset开始的length字节生成一个溢出页
+    public static byte[] initRaw(int pageSize, int next, byte[] data, int offset, int length){
+        byte[] raw = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        buf.putShort(OF_MARKER, MARKER);
+        buf.putInt(OF_NEXT, next);
+        buf.putInt(OF_LENGTH, length);
+        System.arraycopy(data, offset, raw, OF_DATA, length);
+        return raw;
+    }
+
+    public static boolean isOverflow(byte[] raw){
+        return ByteBuffer.wrap(raw).getShort(OF_MARKER) == MARKER;
+    }
+
+    public static int getNext(Page pg){
+        return pg.getBuffer().getInt(OF_NEXT);
+    }
+
+    public static int getLength(Page pg){
+        return pg.getBuffer().getInt(OF_LENGTH);
+    }
+}
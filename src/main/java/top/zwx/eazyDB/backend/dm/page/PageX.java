@@ -1,69 +1,247 @@
 package top.zwx.eazyDB.backend.dm.page;
 
-import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
-import top.zwx.eazyDB.backend.utils.Parser;
-
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * PageX管理普通页，前面有2个字节用于记录页面的偏移量
- * 即下次存储数据从哪个位置开始
- * 普通页结构
+ * PageX管理普通页，采用槽式结构
+ * [SlotCount][FreeEnd][Garbage][Slot0][Slot1]...[SlotN-1] ...空闲... [DataN-1]...[Data1][Data0]
+ * SlotCount、FreeEnd、Garbage 各2字节，每个槽4字节：[Offset][Length]
+ *
+ * 槽目录从页头向后增长，数据从页尾向前增长，两者之间是连续的空闲空间
+ * FreeEnd 为数据区的起始位置，Garbage 为数据区中已删除的数据占用的字节数
+ * Offset 为0的槽表示数据已被删除，槽号不会被复用，指向它的uid读出来是非法的数据项
+ *
+ * uid 中记录的是槽号而不是页内偏移，页内整理（compact）移动数据时 uid 不变
+ * 偏移和长度都按无符号2字节处理，最大支持32kb的页面
  */
 public class PageX {
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;  //可用空间为8-2
+    private static final int OF_SLOT_COUNT = 0;
+    private static final int OF_FREE_END = OF_SLOT_COUNT + 2;
+    private static final int OF_GARBAGE = OF_FREE_END + 2;
+    private static final int OF_SLOTS = OF_GARBAGE + 2;
+    private static final int SLOT_SIZE = 4;
 
-    public static byte[] initRaw(){
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw,OF_DATA);
+    public static byte[] initRaw(int pageSize){
+        byte[] raw = new byte[pageSize];
+        ByteBuffer.wrap(raw).putShort(OF_FREE_END, (short) pageSize);
         return raw;
     }
-    //用于设置页面的空闲位置偏移量（FSO）
-    private static void setFSO(byte[] raw, short ofData){
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+
+    //一条数据最多可用的空间为页面大小减去页头和一个槽
+    public static int maxFreeSpace(int pageSize){
+        return pageSize - OF_SLOTS - SLOT_SIZE;
+    }
+
+    private static int getU16(Page pg, int pos){
+        return pg.getBuffer().getShort(pos) & 0xFFFF;
+    }
+
+    private static void setU16(Page pg, int pos, int value){
+        pg.getBuffer().putShort(pos, (short) value);
     }
 
-    public static short getFSO(Page pg){
-        return getFSO(pg.getData());
+    private static int slotPos(int slot){
+        return OF_SLOTS + slot * SLOT_SIZE;
     }
-    //用于获取给定字节数组raw中表示页面空闲位置偏移量（FSO）的short值
-    private static short getFSO(byte[] raw){
-        return Parser.parseShort(Arrays.copyOfRange(raw,0,2));
+
+    //槽目录末尾到数据区起始之间的连续空闲空间
+    private static int contiguous(Page pg){
+        return getU16(pg, OF_FREE_END) - slotPos(getU16(pg, OF_SLOT_COUNT));
     }
 
-    //将raw插入pg中，返回插入位置
+    //下一条插入的数据使用的槽号
+    public static short nextSlot(Page pg){
+        return (short) getU16(pg, OF_SLOT_COUNT);
+    }
+
+    //槽中数据在页内的偏移，槽不存在或数据已被删除时返回0
+    public static int getOffset(Page pg, short slot){
+        if(slot < 0 || slot >= getU16(pg, OF_SLOT_COUNT)){
+            return 0;
+        }
+        return getU16(pg, slotPos(slot));
+    }
+
+    /**
+     * 页面的空闲空间，包括整理后可以回收的已删除数据，并预留一个槽
+     */
+    public static int getFreeSpace(Page pg){
+        return Math.max(0, contiguous(pg) + getU16(pg, OF_GARBAGE) - SLOT_SIZE);
+    }
+
+    //还没有放进缓存的页面原始数据的空闲空间，和 getFreeSpace 的算法相同
+    public static int getFreeSpace(byte[] page){
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int contiguous = (buf.getShort(OF_FREE_END) & 0xFFFF) - slotPos(buf.getShort(OF_SLOT_COUNT) & 0xFFFF);
+        return Math.max(0, contiguous + (buf.getShort(OF_GARBAGE) & 0xFFFF) - SLOT_SIZE);
+    }
+
+    //页面原始数据中的槽数
+    public static int getSlotCount(byte[] page){
+        return ByteBuffer.wrap(page).getShort(OF_SLOT_COUNT) & 0xFFFF;
+    }
+
+    //不整理页面时可以直接使用的空闲空间
+    public static int getContiguousFreeSpace(Page pg){
+        return Math.max(0, contiguous(pg) - SLOT_SIZE);
+    }
+
+    /**
+     * 能否插入长度为length的数据
+     * compactable 为 false 时页面中的数据不能移动，只能使用连续的空闲空间
+     */
+    public static boolean canInsert(Page pg, int length, boolean compactable){
+        return canInsert(pg, length, 1, compactable);
+    }
+
+    //能否插入总长度为length的count条数据，每条数据占一个新槽
+    public static boolean canInsert(Page pg, int length, int count, boolean compactable){
+        int need = length + count * SLOT_SIZE;
+        if(contiguous(pg) >= need){
+            return true;
+        }
+        return compactable && contiguous(pg) + getU16(pg, OF_GARBAGE) >= need;
+    }
+
+    //将raw插入pg中，返回使用的槽号；连续空间不够时先整理页面，调用方需先用canInsert检查
     public static short insert(Page pg, byte[] raw){
+        short slot = nextSlot(pg);
+        if(contiguous(pg) < raw.length + SLOT_SIZE){
+            compact(pg);
+        }
+        setU16(pg, OF_SLOT_COUNT, slot + 1);
+        place(pg, slot, raw);
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
-        setFSO(pg.getData(),(short)(offset+raw.length));
-        return offset;
+        return slot;
     }
 
-    //获取页面的空闲空间大小
-    public static int getFreeSpace(Page pg){
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+    //在数据区前端放入raw并指向slot，调用方保证连续空间足够
+    private static void place(Page pg, short slot, byte[] raw){
+        int offset = getU16(pg, OF_FREE_END) - raw.length;
+        pg.put(offset, raw, 0, raw.length);
+        setU16(pg, OF_FREE_END, offset);
+        setU16(pg, slotPos(slot), offset);
+        setU16(pg, slotPos(slot) + 2, raw.length);
+    }
+
+    /**
+     * 在还没有放进缓存的页面原始数据中追加一条数据，返回使用的槽号，放不下时返回-1
+     * 用于批量装载直接在内存中构造整页
+     */
+    public static int appendRaw(byte[] page, byte[] raw){
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int count = buf.getShort(OF_SLOT_COUNT) & 0xFFFF;
+        int freeEnd = buf.getShort(OF_FREE_END) & 0xFFFF;
+        if(freeEnd - slotPos(count) < raw.length + SLOT_SIZE){
+            return -1;
+        }
+        int offset = freeEnd - raw.length;
+        System.arraycopy(raw, 0, page, offset, raw.length);
+        buf.putShort(slotPos(count), (short) offset);
+        buf.putShort(slotPos(count) + 2, (short) raw.length);
+        buf.putShort(OF_FREE_END, (short) offset);
+        buf.putShort(OF_SLOT_COUNT, (short) (count + 1));
+        return count;
+    }
+
+    /**
+     * 页内整理，把所有数据移动到页尾连成一片，回收已删除数据的空间
+     * 数据的位置会改变，调用方需保证页面中没有正在被引用的数据项
+     */
+    public static void compact(Page pg){
+        int count = getU16(pg, OF_SLOT_COUNT);
+        List<Integer> slots = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            if(getU16(pg, slotPos(i)) != 0){
+                slots.add(i);
+            }
+        }
+        //从偏移最大的数据开始向页尾移动，目标位置总不小于原位置；数据从整理前的副本中拷贝
+        slots.sort((a, b) -> getU16(pg, slotPos(b)) - getU16(pg, slotPos(a)));
+        byte[] data = new byte[pg.getBuffer().capacity()];
+        pg.get(0, data, 0, data.length);
+        int end = data.length;
+        for(int slot : slots){
+            int offset = getU16(pg, slotPos(slot));
+            int length = getU16(pg, slotPos(slot) + 2);
+            end -= length;
+            pg.put(end, data, offset, length);
+            setU16(pg, slotPos(slot), end);
+        }
+        setU16(pg, OF_FREE_END, end);
+        setU16(pg, OF_GARBAGE, 0);
+        pg.setDirty(true);
     }
 
     /**
-     * recoverInsert() 和 recoverUpdate() 用于在数据库崩溃后重新打开时，恢复例程直接插入数据以及修改数据使用
+     * recoverInsert()、recoverRemove() 和 recoverUpdate() 用于在数据库崩溃后重新打开时，恢复例程直接操作页面
+     * 恢复时没有正在被引用的数据项，可以随时整理页面
      */
-    //将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset){
+    //槽目录至少扩展到slot，新增的槽为已删除状态，等待重做把数据放回去
+    private static void ensureSlot(Page pg, short slot){
+        int count = getU16(pg, OF_SLOT_COUNT);
+        if(slot < count){
+            return;
+        }
+        if(contiguous(pg) < (slot + 1 - count) * SLOT_SIZE){
+            compact(pg);
+        }
+        for(int i = count; i <= slot; i++){
+            setU16(pg, slotPos(i), 0);
+            setU16(pg, slotPos(i) + 2, 0);
+        }
+        setU16(pg, OF_SLOT_COUNT, slot + 1);
+    }
+
+    //将raw放入pg的slot槽中，槽中已有同样长度的数据时原地覆盖
+    public static void recoverInsert(Page pg, byte[] raw, short slot){
+        ensureSlot(pg, slot);
+        int offset = getU16(pg, slotPos(slot));
+        int length = getU16(pg, slotPos(slot) + 2);
+        if(offset != 0 && length == raw.length){
+            pg.put(offset, raw, 0, raw.length);
+        }else{
+            if(offset != 0){
+                setU16(pg, OF_GARBAGE, getU16(pg, OF_GARBAGE) + length);
+                setU16(pg, slotPos(slot), 0);
+            }
+            if(contiguous(pg) < raw.length){
+                compact(pg);
+            }
+            place(pg, slot, raw);
+        }
         pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
+    }
 
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length){
-            setFSO(pg.getData(),(short)(offset+raw.length));
+    //删除slot槽中的数据，空间计入Garbage，槽保留为已删除状态
+    public static void recoverRemove(Page pg, short slot){
+        ensureSlot(pg, slot);
+        int offset = getU16(pg, slotPos(slot));
+        if(offset != 0){
+            setU16(pg, OF_GARBAGE, getU16(pg, OF_GARBAGE) + getU16(pg, slotPos(slot) + 2));
+            setU16(pg, slotPos(slot), 0);
+            setU16(pg, slotPos(slot) + 2, 0);
         }
+        pg.setDirty(true);
     }
 
-    //将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset){
+    //将raw写入slot槽中的数据从offset开始的位置，数据已被删除时忽略
+    public static void recoverDelta(Page pg, byte[] raw, short slot, int offset){
+        int base = getOffset(pg, slot);
+        if(base != 0){
+            pg.put(base + offset, raw, 0, raw.length);
+        }
+        pg.setDirty(true);
+    }
+
+    //将raw写入slot槽中的数据，数据已被删除时忽略
+    public static void recoverUpdate(Page pg, byte[] raw, short slot){
+        int offset = getOffset(pg, slot);
+        if(offset != 0){
+            pg.put(offset, raw, 0, raw.length);
+        }
         pg.setDirty(true);
-        System.arraycopy(raw,0,pg.getData(),offset,raw.length);
     }
 }
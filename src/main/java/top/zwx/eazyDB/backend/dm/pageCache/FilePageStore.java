@@ -0,0 +1,166 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import top.zwx.eazyDB.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过 FileChannel 带位置的读写访问数据库文件
+ * 带位置的读写不修改通道的position，不同页面的读写可以并发进行
+ */
+public class FilePageStore implements PageStore {
+    private static final int ZERO_CHUNK = 1 << 20;          //扩展文件时每次写入的0的长度
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private Lock gatherLock;        //分散读和聚集写依赖通道的position，它们之间需要互斥
+
+    FilePageStore(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.gatherLock = new ReentrantLock();
+    }
+
+    //一次read可能只读到部分数据，循环读满整页；读到文件末尾时剩余部分填0
+    @Override
+    public void read(long offset, ByteBuffer dst) {
+        int start = dst.position();
+        try{
+            while(dst.hasRemaining()){
+                int n = fc.read(dst, offset + dst.position() - start);
+                if(n < 0){
+                    break;
+                }
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        while(dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+    }
+
+    //FileChannel没有带位置的分散读，同聚集写一样先设置position再读
+    @Override
+    public void read(long offset, ByteBuffer[] dsts) {
+        gatherLock.lock();
+        try{
+            fc.position(offset);
+            while(dsts[dsts.length-1].hasRemaining()){
+                if(fc.read(dsts) < 0){
+                    break;
+                }
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }finally {
+            gatherLock.unlock();
+        }
+        for(ByteBuffer dst : dsts) {
+            while(dst.hasRemaining()) {
+                dst.put((byte) 0);
+            }
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        int start = src.position();
+        try{
+            while(src.hasRemaining()){
+                fc.write(src, offset + src.position() - start);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * FileChannel没有带位置的聚集写，只能先设置position再写
+     * 带位置的读写不使用position，所以只需要和其他分散读、聚集写互斥
+     */
+    @Override
+    public void write(long offset, ByteBuffer[] srcs) {
+        gatherLock.lock();
+        try{
+            fc.position(offset);
+            long remaining = 0;
+            for(ByteBuffer src : srcs) {
+                remaining += src.remaining();
+            }
+            while(remaining > 0) {
+                remaining -= fc.write(srcs);
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }finally {
+            gatherLock.unlock();
+        }
+    }
+
+    /**
+     * 真正写入0来占用磁盘空间，而不是只修改文件长度留下空洞
+     * 之后写这些页面时文件系统不需要再分配空间，也不需要更新文件长度
+     */
+    @Override
+    public void allocate(long length) {
+        long offset = length();
+        if(offset >= length) {
+            return;
+        }
+        byte[] zeros = new byte[(int) Math.min(ZERO_CHUNK, length - offset)];
+        try{
+            while(offset < length) {
+                ByteBuffer buf = ByteBuffer.wrap(zeros, 0, (int) Math.min(zeros.length, length - offset));
+                while(buf.hasRemaining()) {
+                    offset += fc.write(buf, offset);
+                }
+            }
+            fc.force(true);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void force() {
+        try{
+            fc.force(false);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public long length() {
+        try{
+            return file.length();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        return 0;
+    }
+
+    @Override
+    public void truncate(long length) {
+        try{
+            file.setLength(length);
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try{
+            fc.close();
+            file.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 页帧池
+ * 启动时按缓存能容纳的页数一次性分配所有页帧，页面被驱逐后页帧回到池中，给下一次缺页复用
+ * 页帧是堆外的 direct ByteBuffer，不占用堆，也不需要 GC 扫描；读写文件时直接在页帧和文件之间拷贝，不经过临时缓冲区
+ * 缓存中的页面数不超过页帧数，页面移出缓存时页帧都会还回来，池不会被取空
+ */
+public class FramePool {
+    private ArrayBlockingQueue<ByteBuffer> frames;
+    private int frameSize;
+    private LongAdder overflows;        //池空时额外分配的页帧数，正常情况下为0
+
+    FramePool(int count, int frameSize) {
+        this.frameSize = frameSize;
+        this.frames = new ArrayBlockingQueue<>(count);
+        this.overflows = new LongAdder();
+        for(ByteBuffer frame : allocate(count, frameSize)) {
+            frames.offer(frame);
+        }
+    }
+
+    //分配count个堆外的缓冲区，也用于写回时拷贝页面
+    static ByteBuffer[] allocate(int count, int frameSize) {
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for(int i = 0; i < count; i++) {
+            bufs[i] = ByteBuffer.allocateDirect(frameSize);
+        }
+        return bufs;
+    }
+
+    /**
+     * 取出一个页帧，position 为0，limit 为页帧大小，内容是上一次使用留下的数据
+     * 池空说明有页帧没有还回来，记下次数后再分配一个，不让缺页失败
+     */
+    ByteBuffer take() {
+        ByteBuffer frame = frames.poll();
+        if(frame == null) {
+            overflows.increment();
+            frame = ByteBuffer.allocateDirect(frameSize);
+        }
+        frame.clear();
+        return frame;
+    }
+
+    //归还页帧，池满时丢弃
+    void recycle(ByteBuffer frame) {
+        if(frame.capacity() == frameSize) {
+            frames.offer(frame);
+        }
+    }
+
+    long getOverflowCount() {
+        return overflows.sum();
+    }
+}
@@ -0,0 +1,205 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import top.zwx.eazyDB.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 通过内存映射访问数据库文件
+ * 文件按 SEGMENT_SIZE 分段映射，最后一段只映射到文件末尾，文件增长或截断时重新映射最后一段
+ * 读写页面只是在映射区和页面之间做一次内存拷贝，不需要系统调用
+ */
+public class MmapPageStore implements PageStore {
+    static final int SEGMENT_SIZE = 1 << 26;        //每段映射64MB
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+
+    private volatile MappedByteBuffer[] segments;   //每一段的映射，增长时整体替换
+    private volatile long length;                   //已映射的长度，即文件长度
+    private Set<Integer> dirtySegments;             //上次force之后被写过的段
+    private Lock mapLock;                           //保护映射的增长和截断
+
+    MmapPageStore(RandomAccessFile file, FileChannel fc) {
+        this.file = file;
+        this.fc = fc;
+        this.segments = new MappedByteBuffer[0];
+        this.dirtySegments = ConcurrentHashMap.newKeySet();
+        this.mapLock = new ReentrantLock();
+        long len = 0;
+        try{
+            len = file.length();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        remap(len);
+    }
+
+    //按新的长度重新建立映射，已有的完整段保持不变，调用时需持有mapLock或处于构造阶段
+    private void remap(long newLength) {
+        int n = (int) ((newLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        MappedByteBuffer[] newSegments = Arrays.copyOf(segments, n);
+        try{
+            for(int i = 0; i < n; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE, newLength - start);
+                if(newSegments[i] == null || newSegments[i].capacity() != size) {
+                    newSegments[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+                }
+            }
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+        segments = newSegments;
+        length = newLength;
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer dst) {
+        //先读length再读segments，remap先更新segments再更新length，保证看到的映射覆盖length
+        long end = Math.min(offset + dst.remaining(), length);
+        MappedByteBuffer[] segs = segments;
+        long cur = offset;
+        while(cur < end) {
+            ByteBuffer seg = segs[(int) (cur / SEGMENT_SIZE)].duplicate();
+            int inSeg = (int) (cur % SEGMENT_SIZE);
+            int n = (int) Math.min(end - cur, seg.capacity() - inSeg);
+            seg.position(inSeg);
+            seg.limit(inSeg + n);
+            dst.put(seg);
+            cur += n;
+        }
+        while(dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+    }
+
+    @Override
+    public void read(long offset, ByteBuffer[] dsts) {
+        for(ByteBuffer dst : dsts) {
+            int n = dst.remaining();
+            read(offset, dst);
+            offset += n;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        long end = offset + src.remaining();
+        if(end > length) {
+            mapLock.lock();
+            try{
+                if(end > length) {
+                    remap(end);
+                }
+            }finally {
+                mapLock.unlock();
+            }
+        }
+        MappedByteBuffer[] segs = segments;
+        long cur = offset;
+        while(cur < end) {
+            int idx = (int) (cur / SEGMENT_SIZE);
+            ByteBuffer seg = segs[idx].duplicate();
+            int inSeg = (int) (cur % SEGMENT_SIZE);
+            int n = (int) Math.min(end - cur, seg.capacity() - inSeg);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            seg.position(inSeg);
+            seg.put(part);
+            src.position(src.position() + n);
+            dirtySegments.add(idx);
+            cur += n;
+        }
+    }
+
+    //映射区上没有系统调用可以省，逐个拷贝即可
+    @Override
+    public void write(long offset, ByteBuffer[] srcs) {
+        for(ByteBuffer src : srcs) {
+            int n = src.remaining();
+            write(offset, src);
+            offset += n;
+        }
+    }
+
+    //映射区写入时才分配磁盘空间，这里只扩展文件长度并重新映射
+    @Override
+    public void allocate(long newLength) {
+        mapLock.lock();
+        try{
+            if(newLength <= length) {
+                return;
+            }
+            try{
+                file.setLength(newLength);
+                fc.force(true);
+            }catch (IOException e){
+                Panic.panic(e);
+            }
+            remap(newLength);
+        }finally {
+            mapLock.unlock();
+        }
+    }
+
+    /**
+     * 只刷写过的段
+     * MappedByteBuffer.force(index, length) 需要 Java 13，项目目标为 Java 11，所以按段整体刷
+     */
+    @Override
+    public void force() {
+        MappedByteBuffer[] segs = segments;
+        for(Integer idx : dirtySegments) {
+            dirtySegments.remove(idx);
+            if(idx < segs.length) {
+                segs[idx].force();
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void truncate(long newLength) {
+        mapLock.lock();
+        try{
+            force();
+            //先丢弃超出部分的映射，再截断文件，避免访问到文件末尾之后的映射区
+            length = Math.min(length, newLength);
+            segments = Arrays.copyOf(segments, (int) ((newLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE));
+            try{
+                file.setLength(newLength);
+            }catch (IOException e){
+                Panic.panic(e);
+            }
+            remap(newLength);
+        }finally {
+            mapLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        segments = new MappedByteBuffer[0];
+        try{
+            fc.close();
+            file.close();
+        }catch (IOException e){
+            Panic.panic(e);
+        }
+    }
+}
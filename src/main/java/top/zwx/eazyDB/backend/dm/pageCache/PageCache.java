@@ -1,27 +1,68 @@
 package top.zwx.eazyDB.backend.dm.pageCache;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.function.LongSupplier;
 
+import top.zwx.eazyDB.backend.common.ClockPolicy;
+import top.zwx.eazyDB.backend.common.EvictPolicy;
+import top.zwx.eazyDB.backend.dm.logger.Logger;
 import top.zwx.eazyDB.backend.dm.page.Page;
 import top.zwx.eazyDB.backend.utils.Panic;
 import top.zwx.eazyDB.common.Error;
 
 public interface PageCache{
 
-    public static final int PAGE_SIZE = 1 << 13;        //声明每一页的大小为8kb
+    public static final int PAGE_SIZE = 1 << 13;        //默认每一页的大小为8kb
+    public static final int MIN_PAGE_SIZE = 1 << 12;    //页面大小的下限4kb
+    public static final int MAX_PAGE_SIZE = 1 << 15;    //页内偏移只有2字节，页面大小最大32kb
+
+    public static final int MODE_FILE = 0;              //通过FileChannel读写数据库文件
+    public static final int MODE_MMAP = 1;              //通过内存映射读写数据库文件
+    public static final int MODE_SEGMENTED = 2;         //数据库文件切分成固定大小的段文件
+    public static final int MODE_STORED = -1;           //打开时沿用创建时记录在第一页中的读写方式
 
     int newPage(byte[] initData);
+    int newPagesDirect(ByteBuffer[] pages);             //连续分配多页，直接写入文件不经过缓存，返回第一页的页号
+    void force();                                       //把已经写入文件的页面落盘
+    void flushDirtyPages(long before);                  //写回调用时recLSN小于before的脏页并落盘
+    Map<Integer, Long> getDirtyPageTable();             //脏页的页号和recLSN，用于检查点
+    void setRecLsnSource(LongSupplier source);          //页面变脏时从这里取recLSN
     Page getPage(int pgno) throws Exception;
     void close();
     void release(Page page);
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    int getPageSize();
     void flushPage(Page pg);
+    void markDirty(Page pg);                            //页面由干净变脏时由Page调用
+    void startWriter(Logger lg, double dirtyRatio);     //启动后台写页线程
+    void prefetch(int from, int to);                    //提示即将访问 [from, to] 范围内的页面，异步预读
+    void setExtentSize(long size);                      //设置数据库文件每次预先扩展的大小
 
     public static PageCacheImpl create(String path, long memory){
+        return create(path, memory, PAGE_SIZE, MODE_FILE, new ClockPolicy());
+    }
+
+    //policy 为缓存满时挑选牺牲页的驱逐策略
+    public static PageCacheImpl create(String path, long memory, EvictPolicy policy){
+        return create(path, memory, PAGE_SIZE, MODE_FILE, policy);
+    }
+
+    //mode 为数据库文件的读写方式，MODE_FILE、MODE_MMAP 或 MODE_SEGMENTED，记录在第一页中
+    public static PageCacheImpl create(String path, long memory, int mode, EvictPolicy policy){
+        return create(path, memory, PAGE_SIZE, mode, policy);
+    }
+
+    //pageSize 为页面大小，MIN_PAGE_SIZE 到 MAX_PAGE_SIZE 之间的2的幂，打开时从第一页读出
+    public static PageCacheImpl create(String path, long memory, int pageSize, int mode, EvictPolicy policy){
+        if(!isValidPageSize(pageSize)){
+            Panic.panic(Error.BadPageSizeException);
+        }
+        if(!isValidMode(mode)){
+            Panic.panic(Error.BadStorageModeException);
+        }
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()){
@@ -33,14 +74,35 @@ public interface PageCache{
         if(!f.canRead() || !f.canWrite()){
             Panic.panic(Error.FileCannotRWException);
         }
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try{
-            raf = new RandomAccessFile(f,"rw");
-            fc = raf.getChannel();
-        }catch (FileNotFoundException e){
-            Panic.panic(e);
+        return new PageCacheImpl(PageStore.open(f, mode), pageSize, mode, memory, policy);
+    }
+
+    public static PageCacheImpl open(String path, long memory){
+        return open(path, memory, MODE_STORED, new ClockPolicy());
+    }
+
+    //mode 为 MODE_STORED 时沿用创建时的读写方式，否则必须与创建时的一致，按别的方式打开会读错或写坏文件
+    public static PageCacheImpl open(String path, long memory, int mode, EvictPolicy policy){
+        File f = new File(path + PageCacheImpl.DB_SUFFIX);
+        if(!f.exists()){
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if(!f.canRead() || !f.canWrite()){
+            Panic.panic(Error.FileCannotRWException);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        int stored = PageCacheImpl.loadMode(f);
+        if(!isValidMode(stored) || (mode != MODE_STORED && mode != stored)){
+            Panic.panic(Error.BadStorageModeException);
+        }
+        PageStore store = PageStore.open(f, stored);
+        return new PageCacheImpl(store, PageCacheImpl.loadPageSize(store), stored, memory, policy);
+    }
+
+    public static boolean isValidPageSize(int pageSize){
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+    }
+
+    public static boolean isValidMode(int mode){
+        return mode == MODE_FILE || mode == MODE_MMAP || mode == MODE_SEGMENTED;
     }
 }
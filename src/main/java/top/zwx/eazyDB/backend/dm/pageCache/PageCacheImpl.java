@@ -2,47 +2,151 @@ package top.zwx.eazyDB.backend.dm.pageCache;
 
 
 import top.zwx.eazyDB.backend.common.AbstractCache;
+import top.zwx.eazyDB.backend.common.EvictPolicy;
+import top.zwx.eazyDB.backend.common.MemoryBudget;
+import top.zwx.eazyDB.backend.dm.logger.Logger;
 import top.zwx.eazyDB.backend.dm.page.Page;
 import top.zwx.eazyDB.backend.dm.page.PageImpl;
+import top.zwx.eazyDB.backend.dm.page.PageOne;
 import top.zwx.eazyDB.backend.utils.Panic;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 import top.zwx.eazyDB.common.Error;
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     private static final int MEM_MIN_LIM = 10;              //最小内存
+    private static final int FLUSH_BATCH = 256;             //关闭时每批写回的页数
+    private static final int PREFETCH_THREADS = 2;          //预读线程数
+    private static final int PREFETCH_QUEUE = 32;           //排队中的预读请求上限
+    public static final long DEFAULT_EXTENT_SIZE = 1 << 20; //文件每次扩展1MB
+    public static final long MAX_EXTENT_SIZE = 1 << 26;     //每次最多扩展64MB
     public static final String DB_SUFFIX = ".db";           //文件后缀
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    private PageStore store;                                //数据库文件的读写方式
+    private int pageSize;                                   //页面大小，创建时确定，记录在第一页中
+    private int mode;                                       //数据库文件的读写方式，创建时确定，记录在第一页中
+    private FramePool frames;                               //缓存页面使用的页帧
+    private int maxResource;                                //缓存能容纳的页数
+    private ConcurrentHashMap<Integer, Long> dirtyPages;    //缓存中的脏页及其recLSN，供后台写线程挑选
+    private ConcurrentHashMap<Object, long[]> writing;      //已经移出脏页集合、还没写完的页面，值为 [pgno, recLSN]
+    private volatile LongSupplier recLsnSource;             //页面变脏时取recLSN，没有设置时为null
+    private PageWriter writer;                              //后台写页线程，没有启动时为null
+    private volatile Logger logger;                         //写回前确认修改页面的日志已经落盘，没有启动写页线程时为null
+    private ReadAhead readAhead;                            //顺序访问检测
+    private ThreadPoolExecutor prefetcher;                  //执行异步预读
 
-    private AtomicInteger pageNumbers;                      //用于原子性操作数据页号
+    private AtomicInteger pageNumbers;                      //已经分配出去的页数，记录在第一页中
+    private int allocatedPages;                             //文件中已经预先扩展出来的页数
+    private int extentPages;                                //文件每次扩展的页数
+    private Lock allocLock;                                 //保护新页的分配、文件的扩展和截断
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+    PageCacheImpl(PageStore store, int pageSize, int mode, long memory, EvictPolicy policy) {
+        super((int) (memory / pageSize), policy);
+        int maxResource = (int) (memory / pageSize);
         if(maxResource < MEM_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try{
-            length = file.length();
+        if(!PageCache.isValidPageSize(pageSize)){
+            Panic.panic(Error.BadPageSizeException);
+        }
+        long length = store.length();
+        this.store = store;
+        this.pageSize = pageSize;
+        this.mode = mode;
+        this.frames = new FramePool(maxResource, pageSize);
+        this.maxResource = maxResource;
+        this.dirtyPages = new ConcurrentHashMap<>();
+        this.writing = new ConcurrentHashMap<>();
+        this.readAhead = new ReadAhead();
+        //预读只是优化，队列满时直接丢弃新的预读请求
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-prefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.allocatedPages = (int) (length / pageSize);
+        this.extentPages = (int) (DEFAULT_EXTENT_SIZE / pageSize);
+        this.allocLock = new ReentrantLock();
+        this.pageNumbers = new AtomicInteger(loadPageNumber());
+    }
+
+    //从第一页读出页数，旧格式的文件没有记录页数，此时文件中没有预先扩展的页，按文件长度推算
+    private int loadPageNumber() {
+        if(allocatedPages == 0) {
+            return 0;
+        }
+        byte[] raw = new byte[pageSize];
+        store.read(0, ByteBuffer.wrap(raw));
+        int pageNumber = PageOne.getPageNumber(raw);
+        if(pageNumber <= 0 || pageNumber > allocatedPages) {
+            return allocatedPages;
+        }
+        return pageNumber;
+    }
+
+    /**
+     * 打开已有文件时从第一页读出页面大小，页面大小字段位于最小页面之内，先按最小页面读
+     * 旧格式的文件没有记录页面大小，为默认的PAGE_SIZE
+     */
+    static int loadPageSize(PageStore store) {
+        if(store.length() == 0) {
+            return PAGE_SIZE;
+        }
+        byte[] raw = new byte[MIN_PAGE_SIZE];
+        store.read(0, ByteBuffer.wrap(raw));
+        int pageSize = PageOne.getPageSize(raw);
+        if(pageSize == 0) {
+            return PAGE_SIZE;
+        }
+        return pageSize;
+    }
+
+    /**
+     * 打开已有文件时从第一页读出读写方式，各种方式下第一页都在 xxx.db 的开头，直接读文件
+     * 旧格式的文件没有记录读写方式，为 MODE_FILE
+     */
+    static int loadMode(File f) {
+        byte[] raw = new byte[MIN_PAGE_SIZE];
+        try(RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            if(raf.length() < MIN_PAGE_SIZE) {
+                return MODE_FILE;
+            }
+            raf.readFully(raw);
         }catch (IOException e){
             Panic.panic(e);
         }
-        this.file = file;
-        this.fc = fileChannel;
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
-        this.fileLock = new ReentrantLock();
+        return PageOne.getStorageMode(raw);
+    }
+
+    //设置文件每次扩展的大小，按页取整，限制在一页到MAX_EXTENT_SIZE之间
+    @Override
+    public void setExtentSize(long size) {
+        allocLock.lock();
+        try{
+            extentPages = (int) (Math.max(pageSize, Math.min(size, MAX_EXTENT_SIZE)) / pageSize);
+        }finally {
+            allocLock.unlock();
+        }
     }
 
 
@@ -53,71 +157,482 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int) key;
-        long offset = PageCacheImpl.pageOffset(pgno);
+        long offset = pageOffset(pgno);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try{
-            fc.position(offset);
-            fc.read(buf);
-        }catch (IOException e){
-            Panic.panic(e);
+        int[] range = readAhead.onMiss(pgno, getPageNumber());
+        if(range != null) {
+            prefetch(range[0], range[1]);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno,buf.array(),this);
+        ByteBuffer data = frames.take();
+        store.read(offset, data.duplicate());
+        return new PageImpl(pgno,data,this);
     }
 
+    /**
+     * 页面被驱逐或缓存关闭时调用，脏页需要先写回磁盘，之后页帧回到池中复用
+     * 写回时不force：日志已经保证了持久性，崩溃后由恢复重做，页面何时落盘不影响正确性
+     * 被驱逐的页面没有引用，修改它的数据项已经等到日志落盘，这里只是保险起见再确认一次
+     */
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()){
-            flush(pg);
+            Logger lg = logger;
+            if(lg != null) {
+                lg.flush(pg.getLsn());
+            }
+            Object w = beginWrite(pg.getPageNumber());
             pg.setDirty(false);
+            store.write(pageOffset(pg.getPageNumber()), pg.getBuffer().duplicate());
+            endWrite(w);
         }
+        frames.recycle(pg.getBuffer());
+    }
+
+    //截断时丢弃的页面不写回，页帧直接回到池中
+    @Override
+    protected void discardForCache(Page pg) {
+        frames.recycle(pg.getBuffer());
     }
 
+    /**
+     * 从预先扩展出的区段中分配一页，区段用完时才扩展文件
+     * 新页直接作为脏页放进缓存，由写页线程或驱逐写回，分配本身不做I/O，只有扩展文件时才把页数记录到第一页
+     * 整个分配过程持有allocLock，页数在新页放进缓存之后才更新，预读不会读到还没放进缓存的新页
+     */
     public int newPage(byte[] initData){
-        int pgno = pageNumbers.incrementAndGet();   //记录当前数据库文件的页数
-        Page pg = new PageImpl(pgno,initData,this);
-        flush(pg);      //新建的页面需要写回到磁盘
+        int pgno;
+        boolean extended = false;
+        allocLock.lock();
+        try{
+            pgno = pageNumbers.get() + 1;
+            if(pgno > allocatedPages) {
+                extend(pgno);
+                extended = true;
+            }
+            install(pgno, initData);
+            pageNumbers.set(pgno);
+        }finally {
+            allocLock.unlock();
+        }
+        if(extended) {
+            savePageNumber();
+        }
         return pgno;
     }
 
-    //这个方法用于将页面写回到磁盘
-    private void flush(Page pg){
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+    /**
+     * 连续分配多页，用一次聚集写直接写入文件，不占用缓存，不force
+     * 用于溢出页这类一次写完就不再修改的页面，调用方在依赖它们持久化之前调用force
+     * 写入在allocLock内完成，页数更新之前这些页面对预读不可见
+     */
+    @Override
+    public int newPagesDirect(ByteBuffer[] pages){
+        int first;
+        boolean extended = false;
+        allocLock.lock();
+        try{
+            first = pageNumbers.get() + 1;
+            int last = first + pages.length - 1;
+            if(last > allocatedPages) {
+                extend(last);
+                extended = true;
+            }
+            store.write(pageOffset(first), pages);
+            pageNumbers.set(last);
+        }finally {
+            allocLock.unlock();
+        }
+        if(extended) {
+            savePageNumber();
+        }
+        return first;
+    }
+
+    @Override
+    public void force() {
+        store.force();
+    }
+
+    //将文件扩展一个区段，至少扩展到pgno页
+    private void extend(int pgno) {
+        allocatedPages = Math.max(allocatedPages + extentPages, pgno);
+        store.allocate(pageOffset(allocatedPages + 1));
+    }
+
+    //把新页放进缓存，缓存满且都被引用时退回到直接写文件
+    private void install(int pgno, byte[] initData) {
+        if(!claim(pgno)) {
+            store.write(pageOffset(pgno), ByteBuffer.wrap(initData));
+            return;
+        }
+        ByteBuffer data = frames.take();
+        data.duplicate().put(initData, 0, pageSize);
+        Page pg = new PageImpl(pgno, data, this);
+        //先标记为脏，避免放进缓存后还没标记就被当作干净页驱逐
+        pg.setDirty(true);
+        fill(pgno, pg);
+    }
 
-        fileLock.lock();
+    /**
+     * 把当前页数、页面大小和读写方式记录到第一页中，随第一页一起写回
+     * 只在扩展文件、检查点和关闭时调用，分配新页不用每次都去改第一页；崩溃时没记下的页数由恢复按检查点和日志推算
+     * 在页面锁内读页数，并发的分配不会用旧值覆盖新值
+     */
+    private void savePageNumber() {
+        if(pageNumbers.get() == 0) {
+            return;
+        }
+        Page one = null;
         try{
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());         //把page对象封装到buf中
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        }catch (IOException e){
+            one = getPage(1);
+        }catch (Exception e){
             Panic.panic(e);
+        }
+        one.lock();
+        try{
+            int pageNumber = pageNumbers.get();
+            if(PageOne.getPageNumber(one) != pageNumber) {
+                PageOne.setPageNumber(one, pageNumber);
+            }
+            if(PageOne.getPageSize(one) != pageSize) {
+                PageOne.setPageSize(one, pageSize);
+            }
+            if(PageOne.getStorageMode(one) != mode) {
+                PageOne.setStorageMode(one, mode);
+            }
         }finally {
-            fileLock.unlock();
+            one.unlock();
+            one.release();
         }
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno - 1) * PAGE_SIZE;
+    //这个方法用于将页面写回到磁盘并force
+    private void flush(Page pg){
+        int pgno = pg.getPageNumber();
+        long offset = pageOffset(pgno);
+
+        store.write(offset, pg.getBuffer().duplicate());
+        store.force();
+    }
+
+    @Override
+    public void markDirty(Page pg) {
+        dirtyPages.putIfAbsent(pg.getPageNumber(), recLsn());
+    }
+
+    //这次变脏之后的修改的日志LSN都不小于recLSN；没有设置来源时用0
+    private long recLsn() {
+        LongSupplier source = recLsnSource;
+        return source == null ? 0 : source.getAsLong();
+    }
+
+    @Override
+    public void setRecLsnSource(LongSupplier source) {
+        this.recLsnSource = source;
+    }
+
+    /**
+     * 页面开始写回：先记进正在写的集合再移出脏页集合，检查点先后取两者的快照，不会漏掉正在写的页面
+     * 返回这次写的标识，页面不在脏页集合中时返回null
+     */
+    private Object beginWrite(int pgno) {
+        Object[] w = new Object[1];
+        dirtyPages.computeIfPresent(pgno, (k, rec) -> {
+            w[0] = new Object();
+            writing.put(w[0], new long[]{k, rec});
+            return null;
+        });
+        return w[0];
+    }
+
+    //写入文件之后调用，此后这次写由检查点的force保证落盘
+    private void endWrite(Object w) {
+        if(w != null) {
+            writing.remove(w);
+        }
+    }
+
+    //这次没有写，把页面放回脏页集合，先放回再移出正在写的集合，检查点不会漏掉它
+    private void cancelWrite(Object w) {
+        if(w != null) {
+            long[] rec = writing.get(w);
+            dirtyPages.merge((int) rec[0], rec[1], Math::min);
+            writing.remove(w);
+        }
+    }
+
+    //已经落盘的日志的末尾，没有日志时所有修改都可以写回
+    private long durableLsn() {
+        Logger lg = logger;
+        return lg == null ? Long.MAX_VALUE : lg.getDurableLsn();
+    }
+
+    //等待已经写入的日志全部落盘，之后写回的页面不会因为日志没落盘被跳过
+    private void flushLog() {
+        Logger lg = logger;
+        if(lg != null) {
+            lg.flush();
+        }
+    }
+
+    /**
+     * 脏页表：脏页和正在写回的页面的页号和最小recLSN
+     * 调用方取完之后force一次，不在表中的页面之前的修改就都已经落盘了
+     */
+    @Override
+    public Map<Integer, Long> getDirtyPageTable() {
+        Map<Integer, Long> dpt = new HashMap<>(dirtyPages);
+        for(long[] w : writing.values()) {
+            dpt.merge((int) w[0], w[1], Math::min);
+        }
+        return dpt;
+    }
+
+    @Override
+    public void startWriter(Logger lg, double dirtyRatio) {
+        logger = lg;
+        writer = new PageWriter(this, lg, dirtyRatio);
+        writer.start();
+    }
+
+    int capacity() {
+        return maxResource;
+    }
+
+    int dirtyCount() {
+        return dirtyPages.size();
+    }
+
+    //取出最多n个脏页的页号
+    List<Integer> dirtyPages(int n) {
+        List<Integer> pgnos = new ArrayList<>(n);
+        for(Integer pgno : dirtyPages.keySet()) {
+            if(pgnos.size() >= n) {
+                break;
+            }
+            pgnos.add(pgno);
+        }
+        return pgnos;
+    }
+
+    /**
+     * 页面在缓存中时增加引用并返回，否则返回null；被驱逐的页面已经写回过了，驱逐时也已经移出了脏页集合
+     * 这里不能移出：页面可能刚被重新读进缓存并变脏
+     */
+    Page pinIfPresent(int pgno) {
+        return getIfPresent(pgno);
+    }
+
+    /**
+     * 把一批已经被引用的页面写回，整批只force一次
+     * 先移出脏页集合再清除脏标记，最后在页面锁内拷贝；拷贝期间或之后的修改会重新把页面标记为脏
+     * 页面的LSN不小于已经落盘的日志末尾时，修改它的日志还没落盘，这次跳过，放回脏页集合
+     * 页面按页号排序，页号连续的一段合并成一次聚集写
+     */
+    void writeBack(List<Page> pages, ByteBuffer[] scratch) {
+        pages.sort(Comparator.comparingInt(Page::getPageNumber));
+        int[] pgnos = new int[pages.size()];
+        List<Object> ws = new ArrayList<>(pages.size());
+        int n = 0;
+        for(Page pg : pages) {
+            Object w = beginWrite(pg.getPageNumber());
+            pg.lock();
+            try{
+                if(!pg.isDirty()) {
+                    endWrite(w);
+                    continue;
+                }
+                if(pg.getLsn() >= durableLsn()) {
+                    cancelWrite(w);
+                    continue;
+                }
+                pg.setDirty(false);
+                scratch[n].clear();
+                scratch[n].put(pg.getBuffer().duplicate());
+                scratch[n].flip();
+            }finally {
+                pg.unlock();
+            }
+            ws.add(w);
+            pgnos[n++] = pg.getPageNumber();
+        }
+        int start = 0;
+        while(start < n) {
+            int end = start + 1;
+            while(end < n && pgnos[end] == pgnos[end-1] + 1) {
+                end++;
+            }
+            store.write(pageOffset(pgnos[start]), Arrays.copyOfRange(scratch, start, end));
+            start = end;
+        }
+        ws.forEach(this::endWrite);
+        if(n > 0) {
+            store.force();
+        }
+    }
+
+    //写回缓存中所有的脏页，用于关闭，此时没有其他线程在修改页面
+    private void flushAll() {
+        savePageNumber();
+        flushLog();
+        ByteBuffer[] scratch = FramePool.allocate(FLUSH_BATCH, pageSize);
+        while(!dirtyPages.isEmpty()) {
+            List<Page> pages = new ArrayList<>();
+            for(int pgno : dirtyPages(FLUSH_BATCH)) {
+                Page pg = pinIfPresent(pgno);
+                if(pg != null) {
+                    pages.add(pg);
+                }
+            }
+            try{
+                writeBack(pages, scratch);
+            }finally {
+                for(Page pg : pages) {
+                    pg.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 写回调用时在脏页集合中、recLSN小于before的页面，和写页线程一样在页面锁内拷贝，之后变脏的页面不管
+     * 先把当前页数记录到第一页，第一页总是一起写回
+     * 先等已经写入的日志落盘，最后总是 force 一次，驱逐时写回但没有 force 的页面也一起落盘
+     */
+    @Override
+    public void flushDirtyPages(long before) {
+        savePageNumber();
+        flushLog();
+        List<Integer> pgnos = new ArrayList<>();
+        for(Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            if(e.getValue() < before || e.getKey() == 1) {
+                pgnos.add(e.getKey());
+            }
+        }
+        ByteBuffer[] scratch = FramePool.allocate(Math.min(FLUSH_BATCH, Math.max(1, pgnos.size())), pageSize);
+        for(int i = 0; i < pgnos.size(); i += scratch.length) {
+            List<Page> pages = new ArrayList<>();
+            for(int pgno : pgnos.subList(i, Math.min(i + scratch.length, pgnos.size()))) {
+                Page pg = pinIfPresent(pgno);
+                if(pg != null) {
+                    pages.add(pg);
+                }
+            }
+            try{
+                writeBack(pages, scratch);
+            }finally {
+                for(Page pg : pages) {
+                    pg.release();
+                }
+            }
+        }
+        store.force();
+    }
+
+    private long pageOffset(int pgno) {
+        return (long) (pgno - 1) * pageSize;   //页号是int，偏移量必须按long计算，否则超过2GB溢出
     }
 
     @Override
     public Page getPage(int pgno) throws Exception {
-        return get((long)pgno);
+        Page pg = get((long)pgno);
+        if(readAhead.isTrigger(pgno)) {
+            int[] range = readAhead.onTrigger(pgno, getPageNumber());
+            if(range != null) {
+                prefetch(range[0], range[1]);
+            }
+        }
+        return pg;
+    }
+
+    //异步预读 [from, to] 范围内的页面，已经在缓存中的页面跳过
+    @Override
+    public void prefetch(int from, int to) {
+        int f = Math.max(from, 1);
+        int t = Math.min(to, getPageNumber());
+        for(int start = f; start <= t; start += ReadAhead.MAX_WINDOW) {
+            int s = start;
+            int e = Math.min(start + ReadAhead.MAX_WINDOW - 1, t);
+            prefetcher.execute(() -> doPrefetch(s, e));
+        }
+    }
+
+    /**
+     * 占住范围内不在缓存中的页面，页号连续的一段用一次分散读直接读入各个页帧
+     * 预读进来的页面引用为0，和普通缺页载入的页面一样参与驱逐
+     * 读失败时放弃这一段占住的页面，等待它们的线程收到异常，页帧回到池中，不再继续预读
+     */
+    private void doPrefetch(int from, int to) {
+        int start = from;
+        while(start <= to) {
+            if(!claim(start)) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while(end <= to && claim(end)) {
+                end++;
+            }
+            ByteBuffer[] data = new ByteBuffer[end - start];
+            ByteBuffer[] bufs = new ByteBuffer[end - start];
+            try{
+                for(int i = 0; i < data.length; i++) {
+                    data[i] = frames.take();
+                    bufs[i] = data[i].duplicate();
+                }
+                store.read(pageOffset(start), bufs);
+            }catch (Exception e){
+                for(int pgno = start; pgno < end; pgno++) {
+                    abandon(pgno, e);
+                    if(data[pgno - start] != null) {
+                        frames.recycle(data[pgno - start]);
+                    }
+                }
+                return;
+            }
+            for(int pgno = start; pgno < end; pgno++) {
+                fill(pgno, new PageImpl(pgno, data[pgno - start], this));
+            }
+            start = end + 1;
+        }
     }
 
     @Override
     public void close() {
-        super.close();
+        if(writer != null) {
+            writer.shutdown();
+        }
+        prefetcher.shutdown();
         try{
-            fc.close();
-            file.close();
-        }catch (IOException e){
-            Panic.panic(e);
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
         }
+        flushAll();
+        super.close();
+        store.force();
+        store.close();
+    }
+
+    //页面缓存加入内存预算，只统计，不被裁剪
+    public void setMemoryBudget(MemoryBudget budget) {
+        setBudget(budget, "pageCache", false);
+    }
+
+    //页帧在创建时一次性分配，占用的内存是固定的
+    @Override
+    public long getMemoryUsage() {
+        return (long) maxResource * pageSize;
+    }
+
+    //页帧池被取空后额外分配的页帧数，页帧都能按时还回来时为0
+    public long getFrameOverflowCount() {
+        return frames.getOverflowCount();
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
     }
 
     @Override
@@ -125,17 +640,24 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         return pageNumbers.intValue();
     }
 
-    //通过截断文件来限制数据库文件的大小
+    //通过截断文件来限制数据库文件的大小，预先扩展出的区段也一并截掉
     //truncateByBgno(100);  // 保留前 100 页的数据，截断文件到第 101 页
     @Override
     public void truncateByBgno(int maxPgno) {
         long size = pageOffset(maxPgno+1);
+        allocLock.lock();
         try{
-            file.setLength(size);
-        }catch (IOException e){
-            Panic.panic(e);
+            discard(pgno -> pgno > maxPgno);       //被截掉的页不能再从缓存写回
+            dirtyPages.keySet().removeIf(pgno -> pgno > maxPgno);
+            store.truncate(size);
+            allocatedPages = maxPgno;
+            pageNumbers.set(maxPgno);
+        }finally {
+            allocLock.unlock();
+        }
+        if(maxPgno > 0) {
+            savePageNumber();
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
@@ -0,0 +1,42 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import top.zwx.eazyDB.backend.utils.Panic;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * 数据库文件的读写方式，PageCacheImpl 通过它按偏移量读写整页
+ * 缓冲区可以是堆上的，也可以是堆外的页帧，读写从缓冲区的 position 开始，完成后 position 移到 limit
+ * FilePageStore 通过 FileChannel 读写，MmapPageStore 通过内存映射读写，SegmentedPageStore 把文件切分成多个段文件
+ */
+public interface PageStore {
+    void read(long offset, ByteBuffer dst);     //从offset处读满dst的剩余部分，超出文件末尾的部分为0
+    void read(long offset, ByteBuffer[] dsts);  //从offset处连续读满dsts，一次分散读
+    void write(long offset, ByteBuffer src);    //将src的剩余部分写到offset处，必要时扩展文件
+    void write(long offset, ByteBuffer[] srcs); //将srcs依次连续写到offset处，一次聚集写
+    void allocate(long length);                 //将文件扩展到length，新增部分为0，扩展后落盘
+    void force();                               //将已写入的内容刷到磁盘
+    long length();                              //文件当前的长度
+    void truncate(long length);                 //将文件截断到length
+    void close();
+
+    public static PageStore open(File f, int mode) {
+        //分段方式按需打开各段文件，包括第0段
+        if(mode == PageCache.MODE_SEGMENTED) {
+            return new SegmentedPageStore(f, SegmentedPageStore.SEGMENT_SIZE);
+        }
+        RandomAccessFile raf = null;
+        try{
+            raf = new RandomAccessFile(f, "rw");
+        }catch (FileNotFoundException e){
+            Panic.panic(e);
+        }
+        if(mode == PageCache.MODE_MMAP) {
+            return new MmapPageStore(raf, raf.getChannel());
+        }
+        return new FilePageStore(raf, raf.getChannel());
+    }
+}
@@ -0,0 +1,87 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import top.zwx.eazyDB.backend.dm.logger.Logger;
+import top.zwx.eazyDB.backend.dm.page.Page;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 后台写页线程
+ * 脏页占缓存的比例超过 dirtyRatio 时，每轮取出一批脏页写回，一轮只 force 一次
+ * 一批页面在写完之前一直被引用，避免驱逐写出的新数据被这里拷贝的旧数据覆盖
+ *
+ * 写前日志：
+ * 1. 每轮写页面之前先 flush 日志，此前写入的日志全部落盘
+ * 2. 修改页面后才写日志的路径（DataItem 的 before/after）在整个修改期间持有页面锁，
+ *    写页线程在页面锁内拷贝页面，不会写出还没有日志的修改
+ */
+public class PageWriter extends Thread {
+    public static final double DEFAULT_DIRTY_RATIO = 0.25;
+    private static final int BATCH = 64;                //每轮最多写回的页数
+    private static final int BATCH_SHARE = 8;           //一批最多占缓存的1/8，写回期间这些页面被引用，不能被驱逐
+    private static final long INTERVAL = 10;            //脏页不多时两轮之间的间隔，毫秒
+
+    private PageCacheImpl pc;
+    private Logger lg;
+    private double dirtyRatio;
+    private int batch;
+    private ByteBuffer[] scratch;                       //拷贝页面用的堆外缓冲区，循环使用
+    private volatile boolean stopped;
+
+    PageWriter(PageCacheImpl pc, Logger lg, double dirtyRatio) {
+        this.pc = pc;
+        this.lg = lg;
+        this.dirtyRatio = dirtyRatio;
+        this.batch = Math.max(1, Math.min(BATCH, pc.capacity() / BATCH_SHARE));
+        this.scratch = FramePool.allocate(batch, pc.getPageSize());
+        setName("page-writer");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            if(pc.dirtyCount() <= dirtyRatio * pc.capacity()) {
+                try{
+                    Thread.sleep(INTERVAL);
+                }catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            writeBatch();
+        }
+    }
+
+    //写回一批脏页
+    private void writeBatch() {
+        List<Integer> pgnos = pc.dirtyPages(batch);
+        lg.flush();
+        List<Page> pages = new ArrayList<>();
+        for(int pgno : pgnos) {
+            Page pg = pc.pinIfPresent(pgno);
+            if(pg != null) {
+                pages.add(pg);
+            }
+        }
+        try{
+            pc.writeBack(pages, scratch);
+        }finally {
+            for(Page pg : pages) {
+                pg.release();
+            }
+        }
+    }
+
+    //不能中断线程：中断正在读写的FileChannel会把通道关闭，等它睡醒自己退出即可
+    void shutdown() {
+        stopped = true;
+        try{
+            join();
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+/**
+ * 顺序访问检测
+ * 连续 SEQ_TRIGGER 次缺页的页号相邻时认为是顺序扫描，预读后面 window 个页面
+ * 预读窗口中间的页面作为触发页，访问到触发页时继续预读下一个窗口，窗口每次翻倍直到 MAX_WINDOW
+ * 访问不再连续时窗口回到 MIN_WINDOW
+ */
+public class ReadAhead {
+    static final int MIN_WINDOW = 4;
+    static final int MAX_WINDOW = 64;               //一次最多预读64页，即512KB
+    private static final int SEQ_TRIGGER = 2;
+
+    private int last = -1;                          //上一次缺页的页号
+    private int run = 0;                            //连续缺页的次数
+    private int window = MIN_WINDOW;
+    private int raEnd = 0;                          //已经预读到的最后一页
+    private volatile int trigger = -1;              //访问到这个页面时预读下一个窗口
+
+    //每次getPage都会调用，不是触发页时只有一次volatile读
+    boolean isTrigger(int pgno) {
+        return pgno == trigger;
+    }
+
+    /**
+     * 缺页时调用
+     * @return 需要预读的范围 [from, to]，不需要预读时返回 null
+     */
+    synchronized int[] onMiss(int pgno, int maxPgno) {
+        if(pgno == last + 1) {
+            run++;
+        } else if(pgno < raEnd && pgno > last) {
+            //预读的页面被驱逐了，仍然算作顺序访问
+            run++;
+        } else {
+            run = 0;
+            window = MIN_WINDOW;
+            raEnd = 0;
+            trigger = -1;
+        }
+        last = pgno;
+        if(run < SEQ_TRIGGER || pgno < raEnd) {
+            return null;
+        }
+        return next(pgno + 1, maxPgno);
+    }
+
+    //访问到触发页时调用
+    synchronized int[] onTrigger(int pgno, int maxPgno) {
+        if(pgno != trigger) {
+            return null;
+        }
+        last = pgno;
+        return next(Math.max(pgno + 1, raEnd + 1), maxPgno);
+    }
+
+    private int[] next(int from, int maxPgno) {
+        int to = Math.min(from + window - 1, maxPgno);
+        if(from > to) {
+            trigger = -1;
+            return null;
+        }
+        raEnd = to;
+        trigger = from + (to - from) / 2;
+        window = Math.min(window * 2, MAX_WINDOW);
+        return new int[]{from, to};
+    }
+}
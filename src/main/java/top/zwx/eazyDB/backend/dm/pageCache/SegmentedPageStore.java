@@ -0,0 +1,263 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import top.zwx.eazyDB.backend.utils.Panic;
+import top.zwx.eazyDB.common.Error;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 把数据库文件切分成固定大小的段文件
+ * 第0段就是 xxx.db，第i段为 xxx.db.i，每段 segmentSize 字节，段大小是页大小的整数倍，一页不会跨段
+ *
+ * 段文件在第一次读写时才打开，每段有自己的通道，不同段上的聚集写、分散读可以并行
+ * 截断时整段落在截断点之后的段直接删除文件
+ */
+public class SegmentedPageStore implements PageStore {
+    static final long SEGMENT_SIZE = 1L << 30;          //每段1GB
+
+    private File base;
+    private long segmentSize;
+
+    private ConcurrentHashMap<Integer, FilePageStore> opened;   //已经打开的段
+    private Set<Integer> dirtySegments;                 //上次force之后被写过的段
+    private volatile int segmentCount;                  //段文件的个数，至少为1
+    private Lock segLock;                               //保护段文件的创建、删除和打开
+
+    SegmentedPageStore(File base, long segmentSize) {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.opened = new ConcurrentHashMap<>();
+        this.dirtySegments = ConcurrentHashMap.newKeySet();
+        this.segLock = new ReentrantLock();
+        int n = 1;
+        while(segmentFile(n).exists()) {
+            n++;
+        }
+        this.segmentCount = n;
+    }
+
+    private File segmentFile(int idx) {
+        if(idx == 0) {
+            return base;
+        }
+        return new File(base.getPath() + "." + idx);
+    }
+
+    //打开第idx段，create为true时不存在的段会被创建，否则返回null
+    private FilePageStore segment(int idx, boolean create) {
+        FilePageStore seg = opened.get(idx);
+        if(seg != null) {
+            return seg;
+        }
+        if(idx >= segmentCount && !create) {
+            return null;
+        }
+        segLock.lock();
+        try{
+            if(idx >= segmentCount) {
+                if(!create) {
+                    return null;
+                }
+                //新段之前的段都必须是满的
+                for(int i = segmentCount - 1; i < idx; i++) {
+                    FilePageStore prev = open(i);
+                    if(prev.length() < segmentSize) {
+                        prev.truncate(segmentSize);
+                    }
+                }
+                segmentCount = idx + 1;
+            }
+            return open(idx);
+        }finally {
+            segLock.unlock();
+        }
+    }
+
+    //打开一个段文件，不存在时创建，调用时需持有segLock
+    private FilePageStore open(int idx) {
+        FilePageStore seg = opened.get(idx);
+        if(seg != null) {
+            return seg;
+        }
+        RandomAccessFile raf = null;
+        try{
+            raf = new RandomAccessFile(segmentFile(idx), "rw");
+        }catch (FileNotFoundException e){
+            Panic.panic(e);
+        }
+        seg = new FilePageStore(raf, raf.getChannel());
+        opened.put(idx, seg);
+        return seg;
+    }
+
+    private int segmentIndex(long offset) {
+        return (int) (offset / segmentSize);
+    }
+
+    //跨段时把缓冲区按段切开，每段读自己的那一部分
+    @Override
+    public void read(long offset, ByteBuffer dst) {
+        long cur = offset;
+        while(dst.hasRemaining()) {
+            long inSeg = cur % segmentSize;
+            int n = (int) Math.min(dst.remaining(), segmentSize - inSeg);
+            FilePageStore seg = segment(segmentIndex(cur), false);
+            if(seg == null) {
+                while(dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+                return;
+            }
+            ByteBuffer part = dst.duplicate();
+            part.limit(part.position() + n);
+            seg.read(inSeg, part);
+            dst.position(dst.position() + n);
+            cur += n;
+        }
+    }
+
+    //按段把缓冲区分组，每组在各自的段上做一次分散读
+    @Override
+    public void read(long offset, ByteBuffer[] dsts) {
+        for(Group g : split(offset, dsts)) {
+            FilePageStore seg = segment(g.idx, false);
+            if(seg == null) {
+                for(ByteBuffer dst : g.bufs) {
+                    while(dst.hasRemaining()) {
+                        dst.put((byte) 0);
+                    }
+                }
+                continue;
+            }
+            seg.read(g.offset, g.bufs);
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer src) {
+        long cur = offset;
+        while(src.hasRemaining()) {
+            long inSeg = cur % segmentSize;
+            int n = (int) Math.min(src.remaining(), segmentSize - inSeg);
+            int idx = segmentIndex(cur);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            segment(idx, true).write(inSeg, part);
+            src.position(src.position() + n);
+            dirtySegments.add(idx);
+            cur += n;
+        }
+    }
+
+    @Override
+    public void write(long offset, ByteBuffer[] srcs) {
+        for(Group g : split(offset, srcs)) {
+            segment(g.idx, true).write(g.offset, g.bufs);
+            dirtySegments.add(g.idx);
+        }
+    }
+
+    //同一段内连续的一组缓冲区
+    private static class Group {
+        int idx;
+        long offset;
+        ByteBuffer[] bufs;
+    }
+
+    //每个缓冲区是整页，不会跨段
+    private List<Group> split(long offset, ByteBuffer[] bufs) {
+        List<Group> groups = new ArrayList<>();
+        int start = 0;
+        long cur = offset;
+        while(start < bufs.length) {
+            Group g = new Group();
+            g.idx = segmentIndex(cur);
+            g.offset = cur % segmentSize;
+            int end = start;
+            while(end < bufs.length && segmentIndex(cur) == g.idx) {
+                cur += bufs[end].remaining();
+                end++;
+            }
+            g.bufs = Arrays.copyOfRange(bufs, start, end);
+            groups.add(g);
+            start = end;
+        }
+        return groups;
+    }
+
+    //逐段扩展，前面的段扩展满
+    @Override
+    public void allocate(long length) {
+        if(length <= length()) {
+            return;
+        }
+        int last = segmentIndex(length - 1);
+        for(int i = segmentIndex(length()); i <= last; i++) {
+            long segLength = i == last ? length - (long) last * segmentSize : segmentSize;
+            segment(i, true).allocate(segLength);
+        }
+    }
+
+    @Override
+    public void force() {
+        for(Integer idx : dirtySegments) {
+            dirtySegments.remove(idx);
+            FilePageStore seg = opened.get(idx);
+            if(seg != null) {
+                seg.force();
+            }
+        }
+    }
+
+    @Override
+    public long length() {
+        int last = segmentCount - 1;
+        FilePageStore seg = opened.get(last);
+        long lastLength = seg != null ? seg.length() : segmentFile(last).length();
+        return (long) last * segmentSize + lastLength;
+    }
+
+    /**
+     * 截断点之后的整段直接关闭并删除，截断点所在的段截断到段内的偏移
+     */
+    @Override
+    public void truncate(long length) {
+        segLock.lock();
+        try{
+            int keep = length == 0 ? 1 : segmentIndex(length - 1) + 1;
+            for(int i = segmentCount - 1; i >= keep; i--) {
+                FilePageStore seg = opened.remove(i);
+                dirtySegments.remove(i);
+                if(seg != null) {
+                    seg.close();
+                }
+                if(!segmentFile(i).delete()) {
+                    Panic.panic(Error.FileCannotRWException);
+                }
+            }
+            segmentCount = keep;
+            open(keep - 1).truncate(length - (long) (keep - 1) * segmentSize);
+        }finally {
+            segLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        for(FilePageStore seg : opened.values()) {
+            seg.close();
+        }
+        opened.clear();
+    }
+}
@@ -0,0 +1,137 @@
+package top.zwx.eazyDB.backend.dm.pageIndex;
+
+import top.zwx.eazyDB.backend.dm.page.Page;
+import top.zwx.eazyDB.backend.dm.page.PageX;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+import top.zwx.eazyDB.backend.utils.Panic;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * 空闲空间表，持久化每个数据页的空闲空间，打开数据库时不需要扫描所有数据页
+ *
+ * 空闲空间表页和数据页交错存放：第2页是第一个表页，管理其后的 pageSize 个数据页，
+ * 之后每隔 pageSize+1 页是下一个表页
+ * [Map][Data]...[Data][Map][Data]...[Data]...
+ * 表页中每个字节对应一个数据页，记录空闲空间右移 shift 位后的值，shift 使整页的空闲空间落在一个字节内
+ * 读出的值向下取整，只会低估空闲空间
+ *
+ * 表页的修改不写日志，只在空闲空间所在的区间变化时才修改，随表页一起由写页线程写回
+ * 崩溃后由恢复根据日志中出现过的页面重新计算
+ */
+public class FreeSpaceMap implements PageIndex.Loader {
+    private static final int FIRST_MAP_PAGE = 2;
+
+    private PageCache pc;
+    private int entries;                //每个表页管理的数据页数
+    private int shift;                  //空闲空间换算成表项时右移的位数
+    private int nextGroup;              //下一个还没有加载到PageIndex中的表页序号
+
+    public FreeSpaceMap(PageCache pc) {
+        this.pc = pc;
+        this.entries = pc.getPageSize();
+        this.shift = Integer.numberOfTrailingZeros(pc.getPageSize()) - 8;
+    }
+
+    public static byte[] initRaw(int pageSize) {
+        return new byte[pageSize];
+    }
+
+    //pgno是否是空闲空间表页
+    public boolean isMapPage(int pgno) {
+        return pgno >= FIRST_MAP_PAGE && (pgno - FIRST_MAP_PAGE) % (entries + 1) == 0;
+    }
+
+    private int groupOf(int pgno) {
+        return (pgno - FIRST_MAP_PAGE) / (entries + 1);
+    }
+
+    private int mapPageOf(int group) {
+        return FIRST_MAP_PAGE + group * (entries + 1);
+    }
+
+    /**
+     * 更新数据页的空闲空间，表项没有变化时不修改表页
+     * 不同数据页对应不同的字节，不需要加锁；先修改再标记为脏，写页线程拷贝之后的修改会让表页重新变脏
+     */
+    public void update(int pgno, int freeSpace) {
+        int mapPgno = mapPageOf(groupOf(pgno));
+        int idx = pgno - mapPgno - 1;
+        byte value = (byte) Math.min(freeSpace >> shift, 0xFF);
+        Page pg = null;
+        try{
+            pg = pc.getPage(mapPgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        try{
+            if(pg.getBuffer().get(idx) != value) {
+                pg.getBuffer().put(idx, value);
+                pg.setDirty(true);
+            }
+        }finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * 加载下一个表页中的数据页到index，已经没有表页可以加载时返回false
+     * 由PageIndex在持有加载锁时调用
+     */
+    @Override
+    public synchronized boolean load(PageIndex index) {
+        int mapPgno = mapPageOf(nextGroup);
+        int pageNumber = pc.getPageNumber();
+        if(mapPgno > pageNumber) {
+            return false;
+        }
+        Page pg = null;
+        try{
+            pg = pc.getPage(mapPgno);
+        }catch (Exception e){
+            Panic.panic(e);
+        }
+        try{
+            ByteBuffer raw = pg.getBuffer();
+            for(int i = 0; i < entries && mapPgno + 1 + i <= pageNumber; i++) {
+                int freeSpace = (raw.get(i) & 0xFF) << shift;
+                if(freeSpace > 0) {
+                    index.add(mapPgno + 1 + i, freeSpace);
+                }
+            }
+        }finally {
+            pg.release();
+        }
+        nextGroup++;
+        return true;
+    }
+
+    /**
+     * 新的表页分配出来时，它所在的组已经没有需要从表中加载的页面，之后的数据页在分配时直接加入PageIndex
+     */
+    public synchronized void markLoaded(int mapPgno) {
+        nextGroup = Math.max(nextGroup, groupOf(mapPgno) + 1);
+    }
+
+    //恢复之后按数据页的实际内容重新计算表项
+    public void repair(Collection<Integer> pgnos) {
+        int pageNumber = pc.getPageNumber();
+        for(int pgno : pgnos) {
+            if(pgno > pageNumber || isMapPage(pgno)) {
+                continue;
+            }
+            Page pg = null;
+            try{
+                pg = pc.getPage(pgno);
+            }catch (Exception e){
+                Panic.panic(e);
+            }
+            try{
+                update(pgno, PageX.getFreeSpace(pg));
+            }finally {
+                pg.release();
+            }
+        }
+    }
+}
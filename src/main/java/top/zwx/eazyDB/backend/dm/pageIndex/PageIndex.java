@@ -1,55 +1,87 @@
 package top.zwx.eazyDB.backend.dm.pageIndex;
 
-import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
-
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 按空闲空间分桶的页面索引
+ * 每个桶是一个无锁队列，add 和 select 互不阻塞，并发插入时各自从桶中取走不同的页面
+ * 只有从 Loader 加载页面时才加锁，保证同一时刻只有一个线程在加载
+ */
 public class PageIndex {
-    //将一页划分为40个区间
+    /**
+     * 按需加载页面的空闲空间，PageIndex中找不到合适的页面时调用
+     * 每次加载一批页面，已经没有可加载的页面时返回false
+     */
+    public interface Loader {
+        boolean load(PageIndex index);
+    }
+
+    //将一页划分为40个区间，每个区间的大小随页面大小变化
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private Queue<PageInfo>[] lists;
+    private int threshold;
+    private volatile Loader loader;         //没有设置时PageIndex中就是全部页面
+    private Lock loadLock;
 
-    public PageIndex(){
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+    public PageIndex(int pageSize){
+        threshold = pageSize / INTERVALS_NO;
+        loadLock = new ReentrantLock();
+        lists = new Queue[INTERVALS_NO+1];
         for(int i = 0; i < INTERVALS_NO+1; i++){
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedQueue<>();
         }
     }
 
     public void add(int pgno, int freeSpace){
-        lock.lock();
-        try{
-            int number = freeSpace/THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        }finally {
-            lock.unlock();
-        }
+        int number = Math.min(freeSpace/threshold, INTERVALS_NO);
+        lists[number].add(new PageInfo(pgno, freeSpace));
     }
 
-    //从页面索引中选择一个可以提供指定大小空闲空间的页面
+    public void setLoader(Loader loader){
+        this.loader = loader;
+    }
+
+    //从页面索引中选择一个可以提供指定大小空闲空间的页面，找不到时先加载更多页面再找
     public PageInfo select(int spaceSize){
-        lock.lock();
-        try{
-            int number = spaceSize/THRESHOLD;
-            if(number <= INTERVALS_NO) number++;
-            while(number <= INTERVALS_NO){
-                if(lists[number].size() == 0){
-                    number++;
-                    continue;
+        while(true){
+            PageInfo pi = poll(spaceSize);
+            if(pi != null){
+                return pi;
+            }
+            Loader l = loader;
+            if(l == null){
+                return null;
+            }
+            loadLock.lock();
+            try{
+                //等锁期间其他线程可能已经加载过了
+                pi = poll(spaceSize);
+                if(pi != null){
+                    return pi;
+                }
+                if(!l.load(this)){
+                    return poll(spaceSize);
                 }
-                return lists[number].remove(0);
+            }finally {
+                loadLock.unlock();
+            }
+        }
+    }
+
+    private PageInfo poll(int spaceSize){
+        int number = spaceSize/threshold;
+        if(number <= INTERVALS_NO) number++;
+        while(number <= INTERVALS_NO){
+            PageInfo pi = lists[number].poll();
+            if(pi != null){
+                return pi;
             }
-            return null;
-        }finally {
-            lock.unlock();
+            number++;
         }
+        return null;
     }
 }
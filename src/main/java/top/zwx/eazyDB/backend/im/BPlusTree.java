@@ -1,5 +1,6 @@
 package top.zwx.eazyDB.backend.im;
 
+import com.google.common.primitives.Bytes;
 import top.zwx.eazyDB.backend.common.SubArray;
 import top.zwx.eazyDB.backend.dm.DataManager;
 import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
@@ -16,16 +17,24 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * boot数据项的结构
+ * [RootUid][BalanceNumber]
+ * 8字节、2字节
+ * 旧的boot数据项只有RootUid，平衡数为Node.BALANCE_NUMBER
+ */
 public class BPlusTree {
     DataManager dm;
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    int balance;                                        //节点的平衡数，建树时确定
 
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        int balance = Node.balanceNumber(dm.getPageSize());
+        byte[] rawRoot = Node.newNilRootRaw(balance);
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Bytes.concat(Parser.long2Byte(rootUid), Parser.short2Byte((short) balance)));
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
@@ -36,6 +45,12 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        if(sa.end - sa.start >= 10){
+            t.balance = Parser.parseShort(Arrays.copyOfRange(sa.raw, sa.start+8, sa.start+10));
+        }else{
+            t.balance = Node.BALANCE_NUMBER;
+        }
         return t;
     }
 
@@ -52,7 +67,7 @@ public class BPlusTree {
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balance);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
@@ -2,6 +2,7 @@ package top.zwx.eazyDB.backend.im;
 
 import top.zwx.eazyDB.backend.common.SubArray;
 import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
 import top.zwx.eazyDB.backend.tm.TransactionManagerImpl;
 import top.zwx.eazyDB.backend.utils.Parser;
 
@@ -20,6 +21,8 @@ import java.util.List;
  * SiblingUid：兄弟节点存储在 DM 中的 UID
  * Son：指向子节点的指针
  * Key：索引键，通过索引键可以定位到具体的节点
+ *
+ * 节点能容纳的key数由所在树的平衡数决定，平衡数按页面大小缩放，8kb页面时为BALANCE_NUMBER
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -28,7 +31,16 @@ public class Node {
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
     static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+
+    //平衡数为balance时节点的大小
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*(balance*2+2);
+    }
+
+    //新建的树按页面大小确定平衡数，页面越大扇出越大
+    static int balanceNumber(int pageSize) {
+        return BALANCE_NUMBER * pageSize / PageCache.PAGE_SIZE;
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -80,11 +92,11 @@ public class Node {
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
         int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(from.raw, offset, to.raw, to.start+NO_KEYS_OFFSET, from.end-offset);
+        System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
-    static byte[] newRootRaw(long left, long right, long key){
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(long left, long right, long key, int balance){
+        SubArray raw = new SubArray(new byte[nodeSize(balance)], 0, nodeSize(balance));
 
         setRawIsLeaf(raw, false); // 设置标志位，不是叶子节点
         setRawNoKeys(raw, 2); // 设置 key 的数量为2，有两个子节点
@@ -97,8 +109,8 @@ public class Node {
     }
 
     //叶子节点
-    static byte[] newNilRootRaw(){
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance){
+        SubArray raw = new SubArray(new byte[nodeSize(balance)], 0, nodeSize(balance));
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
@@ -241,7 +253,7 @@ public class Node {
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
+        int end = raw.end-1;
         for(int i = end; i >= begin; i --) {
             raw.raw[i] = raw.raw[i-(8*2)];
         }
@@ -312,19 +324,20 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balance*2 == getRawNoKeys(raw);
     }
 
 
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = tree.balance;
+        SubArray nodeRaw = new SubArray(new byte[nodeSize(balance)], 0, nodeSize(balance));
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
@@ -87,8 +87,7 @@ public class TransactionManagerImpl implements TransactionManager {
         xidCounter++;
         ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
         try{
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -100,15 +99,14 @@ public class TransactionManagerImpl implements TransactionManager {
         }
     }
 
-    //更新xid事务的状态为status
+    //更新xid事务的状态为status；提交和查询不持有锁，按位置读写，不共用通道的position
     private void updateXID(long xid, byte status){
         long offset = getXidPosition(xid);
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         try{
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -124,8 +122,7 @@ public class TransactionManagerImpl implements TransactionManager {
         long offset = getXidPosition(xid);
         ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            fc.read(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
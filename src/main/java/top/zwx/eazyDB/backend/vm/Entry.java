@@ -62,14 +62,9 @@ public class Entry {
         }
     }
 
+    //只修改XMAX的8个字节，日志中也只记录这8个字节
     public void setXmax(long xid){
-        dataItem.before();
-        try {
-            SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid),0,sa.raw, sa.start + OF_XMAX, 8);
-        }finally {
-            dataItem.after(xid);
-        }
+        dataItem.update(xid, OF_XMAX, Parser.long2Byte(xid));
     }
 
     public long getXmax(){
@@ -1,6 +1,7 @@
 package top.zwx.eazyDB.backend.vm;
 
 import top.zwx.eazyDB.backend.common.AbstractCache;
+import top.zwx.eazyDB.backend.common.MemoryBudget;
 import top.zwx.eazyDB.backend.dm.DataManager;
 import top.zwx.eazyDB.backend.dm.page.Page;
 import top.zwx.eazyDB.backend.tm.TransactionManager;
@@ -14,6 +15,8 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
+    private static final long ENTRY_OVERHEAD = 48;      //一个Entry对象占用内存的估算值，数据本身计在数据项中
+
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
@@ -27,6 +30,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        MemoryBudget budget = dm.getMemoryBudget();
+        if(budget != null) {
+            setBudget(budget, "entry", true);
+        }
     }
 
     //读取一个entry，注意判断可见性
@@ -194,6 +201,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         entry.remove();
     }
 
+    @Override
+    protected long sizeOf(Entry entry) {
+        return ENTRY_OVERHEAD;
+    }
+
     @Override
     public void abort(long xid) {
         // 调用内部的abort方法，autoAborted参数为false表示这不是一个自动中止的事务
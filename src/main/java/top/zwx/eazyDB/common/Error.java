@@ -13,6 +13,8 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
+    public static final Exception BadPageSizeException = new RuntimeException("Bad page size!");
+    public static final Exception BadStorageModeException = new RuntimeException("Bad storage mode!");
 
     //vm
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
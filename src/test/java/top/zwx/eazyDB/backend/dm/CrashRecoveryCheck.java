@@ -0,0 +1,197 @@
+package top.zwx.eazyDB.backend.dm;
+
+import top.zwx.eazyDB.backend.common.ClockPolicy;
+import top.zwx.eazyDB.backend.common.SubArray;
+import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
+import top.zwx.eazyDB.backend.dm.logger.Logger;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCacheImpl;
+import top.zwx.eazyDB.backend.dm.pageCache.PageWriter;
+import top.zwx.eazyDB.backend.tm.TransactionManager;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 崩溃后重新打开的检查
+ * 子进程用很小的日志段和检查点间隔写入数据，中途多次做检查点、删除旧日志段，
+ * 最后留下一个修改过已提交数据、也插入了新数据的未提交事务，做一次检查点让它改过的页面落盘，
+ * 检查点之后再提交几个事务，然后直接 halt 退出，模拟进程崩溃
+ * 父进程重新打开，检查：已提交的数据都在（重做），未提交的修改都已回滚（撤销），旧日志段确实被删除了，
+ * 关闭后再打开一次，数据不变
+ * 用法：CrashRecoveryCheck [目录]，通过时输出 ok，失败时抛出异常，进程以非0退出
+ */
+public class CrashRecoveryCheck {
+    private static final long MEM = 1 << 20;
+    private static final long SEGMENT_SIZE = 128 << 10;
+    private static final long CHECKPOINT_INTERVAL = 256 << 10;
+    private static final int TXNS = 400;
+    private static final int ROWS = 50;
+    private static final int ROW_SIZE = 200;
+    private static final int TAIL_TXNS = 5;             //检查点之后再提交的事务数
+    private static final byte UPDATED = 111;            //已提交的修改写入的值
+    private static final byte DELTA = 112;              //已提交的区间修改写入的值
+    private static final byte UNCOMMITTED = 77;         //未提交的修改写入的值
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 1 && args[0].equals("crash")) {
+            crash(new File(args[1]));
+            return;
+        }
+        String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        File base = new File(dir, "crash_recovery_check");
+        base.mkdirs();
+        for(File f : base.listFiles()) {
+            f.delete();
+        }
+
+        Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                CrashRecoveryCheck.class.getName(), "crash", base.getPath())
+                .inheritIO().start();
+        if(p.waitFor() != 0) {
+            throw new IllegalStateException("crashing process exited with " + p.exitValue());
+        }
+
+        String path = new File(base, "db").getPath();
+        List<Long> uids = new ArrayList<>();
+        List<Long> dropped = new ArrayList<>();
+        try(DataInputStream in = new DataInputStream(new FileInputStream(path + ".uids"))) {
+            int n = in.readInt();
+            for(int i = 0; i < n; i++) {
+                uids.add(in.readLong());
+            }
+            n = in.readInt();
+            for(int i = 0; i < n; i++) {
+                dropped.add(in.readLong());
+            }
+        }
+
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm);
+        Logger lg = dm.getLogger();
+        if(lg.getCheckpoint() < 0 || lg.getStartLsn() == 0) {
+            throw new IllegalStateException("no checkpoint or old log segments were kept");
+        }
+        verify(dm, uids, dropped);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        verify(dm, uids, dropped);
+        dm.close();
+        tm.close();
+        System.out.println("ok, " + uids.size() + " rows recovered");
+    }
+
+    private static void crash(File base) throws Exception {
+        String path = new File(base, "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = create(path, tm);
+        dm.setCheckpointInterval(CHECKPOINT_INTERVAL);
+
+        List<Long> uids = new ArrayList<>();
+        List<Long> dropped = new ArrayList<>();
+        for(int t = 0; t < TXNS + TAIL_TXNS; t++) {
+            if(t == TXNS) {
+                //未提交的事务改写前面的数据并插入新数据，检查点把这些修改写到磁盘上，恢复时必须撤销
+                long bad = tm.begin();
+                for(int k = 0; k < uids.size(); k += 97) {
+                    DataItem di = dm.read(uids.get(k));
+                    di.before();
+                    SubArray s = di.data();
+                    s.raw[s.start + 2] = UNCOMMITTED;
+                    di.after(bad);
+                    di.update(bad, 3, new byte[]{UNCOMMITTED});
+                    di.release();
+                }
+                for(int k = 0; k < ROWS; k++) {
+                    dropped.add(dm.insert(bad, row(0)));
+                }
+                dm.checkpoint();
+            }
+            long xid = tm.begin();
+            for(int k = 0; k < ROWS; k++) {
+                uids.add(dm.insert(xid, row(t)));
+            }
+            if(t > 0) {
+                //改写上一个事务插入的一条，整项修改和区间修改各一次
+                DataItem di = dm.read(uids.get(uids.size() - ROWS - 10));
+                di.before();
+                SubArray s = di.data();
+                s.raw[s.start] = UPDATED;
+                di.after(xid);
+                di.update(xid, 1, new byte[]{DELTA});
+                di.release();
+            }
+            tm.commit(xid);
+        }
+        save(path, uids, dropped);
+        Runtime.getRuntime().halt(0);
+    }
+
+    //和 DataManager.create 相同，只是日志段很小，写入不多时就能观察到旧日志段被删除
+    private static DataManagerImpl create(String path, TransactionManager tm) {
+        PageCacheImpl pc = PageCache.create(path, MEM, PageCache.PAGE_SIZE, PageCache.MODE_FILE, new ClockPolicy());
+        Logger lg = Logger.create(path, SEGMENT_SIZE);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        dm.initPageOne();
+        dm.initPageIndex();
+        pc.startWriter(lg, PageWriter.DEFAULT_DIRTY_RATIO);
+        dm.startCheckpointer();
+        return dm;
+    }
+
+    private static void verify(DataManager dm, List<Long> uids, List<Long> dropped) throws Exception {
+        for(int i = 0; i < uids.size(); i++) {
+            int t = i / ROWS;
+            boolean updated = i % ROWS == ROWS - 10 && t + 1 < TXNS + TAIL_TXNS;
+            DataItem di = dm.read(uids.get(i));
+            if(di == null) {
+                throw new IllegalStateException("row " + i + " lost");
+            }
+            SubArray s = di.data();
+            byte fill = (byte) (t % 100);
+            if(s.end - s.start != ROW_SIZE
+                    || s.raw[s.start] != (updated ? UPDATED : fill)
+                    || s.raw[s.start + 1] != (updated ? DELTA : fill)
+                    || s.raw[s.start + 2] != fill
+                    || s.raw[s.start + 3] != fill
+                    || s.raw[s.end - 1] != fill) {
+                throw new IllegalStateException("row " + i + " has wrong content");
+            }
+            di.release();
+        }
+        for(long uid : dropped) {
+            if(dm.read(uid) != null) {
+                throw new IllegalStateException("uncommitted insert " + uid + " is visible");
+            }
+        }
+    }
+
+    private static byte[] row(int t) {
+        byte[] row = new byte[ROW_SIZE];
+        Arrays.fill(row, (byte) (t % 100));
+        return row;
+    }
+
+    private static void save(String path, List<Long> uids, List<Long> dropped) throws Exception {
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(path + ".uids"))) {
+            out.writeInt(uids.size());
+            for(long uid : uids) {
+                out.writeLong(uid);
+            }
+            out.writeInt(dropped.size());
+            for(long uid : dropped) {
+                out.writeLong(uid);
+            }
+        }
+    }
+}
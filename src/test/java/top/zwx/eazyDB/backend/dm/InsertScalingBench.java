@@ -0,0 +1,73 @@
+package top.zwx.eazyDB.backend.dm;
+
+import top.zwx.eazyDB.backend.tm.TransactionManager;
+
+import java.io.File;
+
+/**
+ * 并发插入的扩展性
+ * 每种线程数新建一个数据库，rows 条 rowSize 字节的数据平均分给各个线程，每个线程在自己的事务中插入，
+ * 分别在关闭和开启每线程填充页时统计每秒插入的条数和用掉的页数
+ * 用法：InsertScalingBench [目录] [总条数] [每条的字节数]
+ */
+public class InsertScalingBench {
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private static final long MEM = 16 << 20;
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 64000;
+        int rowSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        File base = new File(dir, "insert_scaling_bench");
+
+        System.out.println("rows " + rows + " x " + rowSize + " bytes");
+        for(boolean fillPages : new boolean[]{false, true}) {
+            for(int threads : THREADS) {
+                clean(base);
+                String path = new File(base, "db").getPath();
+                TransactionManager tm = TransactionManager.create(path);
+                DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm);
+                dm.setFillPagePerThread(fillPages);
+                long ns = run(tm, dm, threads, rows / threads, new byte[rowSize]);
+                int pages = dm.pc.getPageNumber();
+                dm.close();
+                tm.close();
+                System.out.printf("fill pages %-5s threads %2d: %8.0f rows/s, %5d pages%n",
+                        fillPages, threads, (double) (rows / threads * threads) * 1e9 / ns, pages);
+            }
+        }
+        clean(base);
+    }
+
+    private static long run(TransactionManager tm, DataManager dm, int threads, int perThread, byte[] row) throws InterruptedException {
+        Thread[] ts = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            ts[i] = new Thread(() -> {
+                try{
+                    long xid = tm.begin();
+                    for(int k = 0; k < perThread; k++) {
+                        dm.insert(xid, row);
+                    }
+                    tm.commit(xid);
+                }catch (Exception e){
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for(Thread t : ts) {
+            t.start();
+        }
+        for(Thread t : ts) {
+            t.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void clean(File dir) {
+        dir.mkdirs();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+}
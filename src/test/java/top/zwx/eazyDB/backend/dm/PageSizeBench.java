@@ -0,0 +1,69 @@
+package top.zwx.eazyDB.backend.dm;
+
+import top.zwx.eazyDB.backend.dm.dataItem.DataItem;
+import top.zwx.eazyDB.backend.dm.pageCache.PageCache;
+import top.zwx.eazyDB.backend.tm.TransactionManager;
+
+import java.io.File;
+
+/**
+ * 不同页面大小下的插入和扫描吞吐
+ * 每种页面大小新建一个数据库，在一个事务中插入 rows 条 rowSize 字节的数据，
+ * 关闭后用固定大小的冷缓存重新打开，按插入顺序读一遍所有数据
+ * 用法：PageSizeBench [目录] [条数] [每条的字节数]
+ */
+public class PageSizeBench {
+    private static final int[] PAGE_SIZES = {4 << 10, 8 << 10, 16 << 10, 32 << 10};
+    private static final long MEM = 4 << 20;
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int rowSize = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        File base = new File(dir, "page_size_bench");
+
+        System.out.println("rows " + rows + " x " + rowSize + " bytes, cache " + (MEM >> 20) + " MB");
+        for(int pageSize : PAGE_SIZES) {
+            clean(base);
+            String path = new File(base, "db").getPath();
+            byte[] row = new byte[rowSize];
+            long[] uids = new long[rows];
+
+            TransactionManager tm = TransactionManager.create(path);
+            DataManager dm = DataManager.create(path, MEM, pageSize, tm);
+            long start = System.nanoTime();
+            long xid = tm.begin();
+            for(int i = 0; i < rows; i++) {
+                uids[i] = dm.insert(xid, row);
+            }
+            tm.commit(xid);
+            long insertNs = System.nanoTime() - start;
+            dm.close();
+            tm.close();
+
+            tm = TransactionManager.open(path);
+            dm = DataManager.open(path, MEM, tm);
+            start = System.nanoTime();
+            long bytes = 0;
+            for(long uid : uids) {
+                DataItem di = dm.read(uid);
+                bytes += di.data().end - di.data().start;
+                di.release();
+            }
+            long scanNs = System.nanoTime() - start;
+            dm.close();
+            tm.close();
+
+            System.out.printf("page %2d KB: insert %8.0f rows/s, scan %9.0f rows/s (%.1f MB/s)%n",
+                    pageSize >> 10, rows * 1e9 / insertNs, rows * 1e9 / scanNs, bytes * 1e9 / scanNs / (1 << 20));
+        }
+        clean(base);
+    }
+
+    private static void clean(File dir) {
+        dir.mkdirs();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package top.zwx.eazyDB.backend.dm;
+
+import top.zwx.eazyDB.backend.tm.TransactionManager;
+
+import java.io.File;
+
+/**
+ * 崩溃后重启时间和日志量的关系
+ * 子进程用 THREADS 个线程插入 rows 条数据后直接 halt 退出，父进程计时重新打开（包括恢复）所用的时间
+ * 每种数据量分别在关闭定期检查点和检查点间隔为 CHECKPOINT_INTERVAL 时各跑一次
+ * 用法：RestartBench [目录] [最少的条数]，条数依次乘4，共 STEPS 种
+ */
+public class RestartBench {
+    private static final int THREADS = 16;
+    private static final int ROWS_PER_TXN = 100;
+    private static final int ROW_SIZE = 100;
+    private static final int STEPS = 4;
+    private static final long MEM = 16 << 20;
+    private static final long CHECKPOINT_INTERVAL = 4 << 20;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 3 && args[0].equals("load")) {
+            load(new File(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]));
+            return;
+        }
+        String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        File base = new File(dir, "restart_bench");
+
+        measure(base, rows, 0);          //预热，第一次打开包括类加载和JIT，不计入结果
+        for(int step = 0; step < STEPS; step++, rows *= 4) {
+            for(long interval : new long[]{0, CHECKPOINT_INTERVAL}) {
+                long[] r = measure(base, rows, interval);
+                System.out.printf("rows %7d, checkpoint %-4s: log on disk %6.1f MB, restart %6d ms%n",
+                        rows, interval == 0 ? "off" : (interval >> 20) + "MB", r[0] / (double) (1 << 20), r[1]);
+            }
+        }
+        clean(base);
+    }
+
+    //在子进程中装载后崩溃，返回磁盘上的日志字节数和重新打开的毫秒数
+    private static long[] measure(File base, int rows, long interval) throws Exception {
+        clean(base);
+        Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                RestartBench.class.getName(), "load", base.getPath(), String.valueOf(rows), String.valueOf(interval))
+                .inheritIO().start();
+        if(p.waitFor() != 0) {
+            throw new IllegalStateException("loading process exited with " + p.exitValue());
+        }
+        long logBytes = logBytes(base);
+
+        String path = new File(base, "db").getPath();
+        long start = System.nanoTime();
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm);
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        dm.close();
+        tm.close();
+        return new long[]{logBytes, ms};
+    }
+
+    private static void load(File base, int rows, long interval) throws Exception {
+        String path = new File(base, "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        dm.setCheckpointInterval(interval);
+        Thread[] ts = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++) {
+            ts[i] = new Thread(() -> {
+                byte[] row = new byte[ROW_SIZE];
+                try{
+                    for(int done = 0; done < rows / THREADS; done += ROWS_PER_TXN) {
+                        long xid = tm.begin();
+                        for(int k = 0; k < ROWS_PER_TXN; k++) {
+                            dm.insert(xid, row);
+                        }
+                        tm.commit(xid);
+                    }
+                }catch (Exception e){
+                    throw new RuntimeException(e);
+                }
+            });
+            ts[i].start();
+        }
+        for(Thread t : ts) {
+            t.join();
+        }
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static long logBytes(File dir) {
+        long bytes = 0;
+        for(File f : dir.listFiles()) {
+            if(f.getName().startsWith("db.log")) {
+                bytes += f.length();
+            }
+        }
+        return bytes;
+    }
+
+    private static void clean(File dir) {
+        dir.mkdirs();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package top.zwx.eazyDB.backend.dm.pageCache;
+
+import top.zwx.eazyDB.backend.dm.page.Page;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程缺页读的吞吐
+ * 先建一个 pages 页的数据库文件，再用只能放下 CACHE_PAGES 页的缓存打开，
+ * 每个线程随机读页，几乎每次都缺页，统计不同线程数下每秒读入的页数
+ * 用法：PageCacheMissBench [目录] [页数] [每种线程数运行的秒数]
+ */
+public class PageCacheMissBench {
+    private static final int CACHE_PAGES = 64;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        String path = dir + File.separator + "miss_bench";
+        new File(path + PageCacheImpl.DB_SUFFIX).delete();
+
+        PageCache pc = PageCache.create(path, (long) CACHE_PAGES * PageCache.PAGE_SIZE);
+        for(int i = 0; i < pages; i++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        System.out.println("pages " + pages + ", cache " + CACHE_PAGES + " pages");
+        for(int threads : THREADS) {
+            pc = PageCache.open(path, (long) CACHE_PAGES * PageCache.PAGE_SIZE);
+            long misses = run(pc, threads, pages, seconds);
+            pc.close();
+            System.out.printf("threads %2d: %8d pages/s%n", threads, misses / seconds);
+        }
+        new File(path + PageCacheImpl.DB_SUFFIX).delete();
+    }
+
+    private static long run(PageCache pc, int threads, int pages, int seconds) throws InterruptedException {
+        AtomicLong count = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] ts = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            ts[i] = new Thread(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                long n = 0;
+                while(System.nanoTime() < deadline) {
+                    Page pg;
+                    try{
+                        pg = pc.getPage(r.nextInt(pages) + 1);
+                    }catch (Exception e){
+                        throw new RuntimeException(e);
+                    }
+                    pg.release();
+                    n++;
+                }
+                count.addAndGet(n);
+            });
+            ts[i].start();
+        }
+        for(Thread t : ts) {
+            t.join();
+        }
+        return count.get();
+    }
+}